@@ -31,6 +31,17 @@ public class Amplitude {
         return AmplitudeClient.getInstance();
     }
 
+    /**
+     * Gets the instance with the given name, for sending events to more than one Amplitude
+     * project. Each instance has its own API key, unsent events and upload schedule.
+     *
+     * @param instanceName the instance name, null or empty for the default instance
+     * @return the instance
+     */
+    public static AmplitudeClient getInstance(String instanceName) {
+        return AmplitudeClient.getInstance(instanceName);
+    }
+
     /**
      * Initialize the SDK with the Android app context and Amplitude API key.
      * Initializing is required before calling other methods such as {@code logEvent();}.
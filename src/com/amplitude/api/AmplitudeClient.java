@@ -2,10 +2,14 @@ package com.amplitude.api;
 
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.location.Location;
 import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
@@ -19,16 +23,19 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import okhttp3.FormBody;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 
 /**
@@ -94,6 +101,12 @@ public class AmplitudeClient {
      */
     protected static AmplitudeClient instance = new AmplitudeClient();
 
+    /**
+     * The named instances, fetched by {@code Amplitude.getInstance(String)}
+     */
+    protected static final Map<String, AmplitudeClient> instances =
+            new HashMap<String, AmplitudeClient>();
+
     /**
      * Gets the default AmplitudeClient instance.
      *
@@ -103,6 +116,30 @@ public class AmplitudeClient {
         return instance;
     }
 
+    /**
+     * Gets the AmplitudeClient instance with the given name, creating it on first use. Each
+     * instance is initialized with its own API key and keeps its own unsent events, device id
+     * and session in a separate database, and uploads on its own schedule. The instances share
+     * the default instance's worker threads. A null or empty name, or
+     * {@link Constants#DEFAULT_INSTANCE}, returns the default instance. Names are case
+     * insensitive.
+     *
+     * @param instanceName the instance name
+     * @return the instance
+     */
+    public static synchronized AmplitudeClient getInstance(String instanceName) {
+        instanceName = Utils.normalizeInstanceName(instanceName);
+        if (instanceName.equals(instance.instanceName)) {
+            return instance;
+        }
+        AmplitudeClient client = instances.get(instanceName);
+        if (client == null) {
+            client = new AmplitudeClient(instanceName, instance.logThread, instance.httpThread);
+            instances.put(instanceName, client);
+        }
+        return client;
+    }
+
     private static final Amplitude.UploadCallback EMPTY = new Amplitude.UploadCallback() {
         @Override public void onComplete() {
 
@@ -115,6 +152,12 @@ public class AmplitudeClient {
 
     private static final AmplitudeLog logger = AmplitudeLog.getLogger();
 
+    private static final MediaType FORM_CONTENT_TYPE =
+        MediaType.parse("application/x-www-form-urlencoded");
+
+    // written for events without properties, never modified
+    private static final JSONObject EMPTY_JSON_OBJECT = new JSONObject();
+
     /**
      * The Android App Context.
      */
@@ -124,9 +167,17 @@ public class AmplitudeClient {
      */
     protected OkHttpClient httpClient;
     /**
-     * The shared Amplitude database helper instance.
+     * The store for unsent events and SDK metadata, the shared database helper by default.
+     */
+    protected EventStore eventStore;
+    /**
+     * The store set with {@link #setEventStore(EventStore)}, if any.
      */
-    protected DatabaseHelper dbHelper;
+    private EventStore customEventStore;
+    /**
+     * The name of this instance, which picks its database.
+     */
+    protected String instanceName;
     /**
      * The Amplitude App API key.
      */
@@ -150,6 +201,7 @@ public class AmplitudeClient {
      */
     long sessionId = -1;
     long sequenceNumber = 0;
+    long sequenceNumberBlockEnd = 0;
     long lastEventId = -1;
     long lastIdentifyId = -1;
     long lastEventTime = -1;
@@ -157,13 +209,33 @@ public class AmplitudeClient {
 
     private DeviceInfo deviceInfo;
 
+    /**
+     * The user, device and library fields shared by events, serialized once. Rebuilt when the
+     * device info, user id or device id it was built from changes, see getEventContext().
+     */
+    private String eventContext;
+    private DeviceInfo eventContextDeviceInfo;
+    private String eventContextUserId;
+    private String eventContextDeviceId;
+
+    /**
+     * The buffer events are written into on logThread.
+     */
+    private final EventWriter eventWriter = new EventWriter();
+
     /**
      * The current session ID value.
      */
     private int eventUploadThreshold = Constants.EVENT_UPLOAD_THRESHOLD;
     private int eventUploadMaxBatchSize = Constants.EVENT_UPLOAD_MAX_BATCH_SIZE;
     private int eventMaxCount = Constants.EVENT_MAX_COUNT;
+    private long eventMaxSizeBytes = Constants.EVENT_MAX_SIZE_BYTES;
+    private int maxPropertyDepth = Constants.MAX_PROPERTY_DEPTH;
+    private int maxPropertyValues = Constants.MAX_PROPERTY_VALUES;
+    private int maxEventLength = Constants.MAX_EVENT_LENGTH;
     private long eventUploadPeriodMillis = Constants.EVENT_UPLOAD_PERIOD_MILLIS;
+    private int eventInsertMaxBatchSize = Constants.EVENT_INSERT_MAX_BATCH_SIZE;
+    private long eventInsertBatchWindowMillis = 0;
     private long minTimeBetweenSessionsMillis = Constants.MIN_TIME_BETWEEN_SESSIONS_MILLIS;
     private long sessionTimeoutMillis = Constants.SESSION_TIMEOUT_MILLIS;
     private boolean backoffUpload = false;
@@ -172,8 +244,19 @@ public class AmplitudeClient {
     private boolean trackingSessionEvents = false;
     private boolean inForeground = false;
     private boolean flushEventsOnClose = true;
+    private boolean databaseWriteAheadLogging = false;
+    private int databasePageSize = 0;
+    private int databaseCacheSize = 0;
+    private boolean eventCompression = false;
+    private boolean trimMemoryCallbacksRegistered = false;
 
     private AtomicBoolean updateScheduled = new AtomicBoolean(false);
+    private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private AtomicBoolean reclaimScheduled = new AtomicBoolean(false);
+    /**
+     * The number of events that had properties dropped for going over the property limits.
+     */
+    private AtomicLong propertyLimitExceededCount = new AtomicLong(0);
     /**
      * Whether or not the SDK is in the process of uploading events.
      */
@@ -190,20 +273,37 @@ public class AmplitudeClient {
     /**
      * The background event logging worker thread instance.
      */
-    WorkerThread logThread = new WorkerThread("logThread");
+    WorkerThread logThread;
     /**
      * The background event uploading worker thread instance.
      */
-    WorkerThread httpThread = new WorkerThread("httpThread");
+    WorkerThread httpThread;
 
     /**
-     * Instantiates a new AmplitudeClient and starts worker threads.
+     * Instantiates a new AmplitudeClient for the default instance and starts worker threads.
      */
     public AmplitudeClient() {
+        this(null);
+    }
+
+    /**
+     * Instantiates a new AmplitudeClient for the named instance and starts worker threads.
+     * Prefer {@link #getInstance(String)}, which shares the worker threads between instances.
+     *
+     * @param instanceName the instance name
+     */
+    public AmplitudeClient(String instanceName) {
+        this(instanceName, new WorkerThread("logThread"), new WorkerThread("httpThread"));
         logThread.start();
         httpThread.start();
     }
 
+    AmplitudeClient(String instanceName, WorkerThread logThread, WorkerThread httpThread) {
+        this.instanceName = Utils.normalizeInstanceName(instanceName);
+        this.logThread = logThread;
+        this.httpThread = httpThread;
+    }
+
     /**
      * Initialize the Amplitude SDK with the Android application context and your Amplitude
      * App API key. <b>Note:</b> initialization is required before you log events and modify
@@ -244,27 +344,36 @@ public class AmplitudeClient {
 
         this.context = context.getApplicationContext();
         this.apiKey = apiKey;
-        this.dbHelper = DatabaseHelper.getDatabaseHelper(this.context);
+        this.eventStore = customEventStore != null ?
+            customEventStore : DatabaseHelper.getDatabaseHelper(this.context, instanceName);
+        registerTrimMemoryCallbacks();
 
         final AmplitudeClient client = this;
         runOnLogThread(new Runnable() {
             @Override
             public void run() {
+                applyInsertBatchSize();
+                applyDatabaseOptions();
                 if (!initialized) {
                     // this try block is idempotent, so it's safe to retry initialize if failed
                     try {
                         AmplitudeClient.upgradePrefs(context);
-                        AmplitudeClient.upgradeSharedPrefsToDB(context);
+                        // the shared preferences predate named instances, so only the
+                        // default instance migrates them
+                        if (customEventStore == null &&
+                                Constants.DEFAULT_INSTANCE.equals(instanceName)) {
+                            AmplitudeClient.upgradeSharedPrefsToDB(context);
+                        }
                         httpClient = okHttpClient == null ? new OkHttpClient(): okHttpClient;
                         initializeDeviceInfo();
 
                         if (userId != null) {
                             client.userId = userId;
-                            dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                            eventStore.insertOrReplaceKeyValue(USER_ID_KEY, userId);
                         } else {
-                            client.userId = dbHelper.getValue(USER_ID_KEY);
+                            client.userId = eventStore.getValue(USER_ID_KEY);
                         }
-                        Long optOutLong = dbHelper.getLongValue(OPT_OUT_KEY);
+                        Long optOutLong = eventStore.getLongValue(OPT_OUT_KEY);
                         optOut = optOutLong != null && optOutLong == 1;
 
 
@@ -275,9 +384,13 @@ public class AmplitudeClient {
                         }
 
                         // reload event meta data
+                        // the stored value is the end of the last reserved block, any numbers
+                        // left in it are skipped so the sequence stays strictly increasing
                         sequenceNumber = getLongvalue(SEQUENCE_NUMBER_KEY, 0);
                         lastEventId = getLongvalue(LAST_EVENT_ID_KEY, -1);
                         lastIdentifyId = getLongvalue(LAST_IDENTIFY_ID_KEY, -1);
+                        catchUpEventMetadata();
+                        sequenceNumberBlockEnd = sequenceNumber;
                         lastEventTime = getLongvalue(LAST_EVENT_TIME_KEY, -1);
 
                         initialized = true;
@@ -295,6 +408,39 @@ public class AmplitudeClient {
         return this;
     }
 
+    /*
+        Releases the event database connection under memory pressure. The system calls back on
+        the main thread, so the close is posted to logThread where it cannot stall the UI on
+        disk writes.
+     */
+    private void registerTrimMemoryCallbacks() {
+        if (trimMemoryCallbacksRegistered || !(eventStore instanceof DatabaseHelper) ||
+                Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        trimMemoryCallbacksRegistered = true;
+        final DatabaseHelper dbHelper = (DatabaseHelper) eventStore;
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(final int level) {
+                runOnLogThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dbHelper.trimMemory(level);
+                    }
+                });
+            }
+
+            @Override
+            public void onLowMemory() {
+                onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+        });
+    }
+
     /**
      * Enable foreground tracking for the SDK. This is <b>HIGHLY RECOMMENDED</b>, and will allow
      * for accurate session tracking.
@@ -426,6 +572,73 @@ public class AmplitudeClient {
         return this;
     }
 
+    /**
+     * Sets event max size bytes. This caps the total size of unsent events and identifies kept
+     * on the device, in addition to the event max count. If the stored events exceed it, the
+     * SDK drops events, starting from the earliest logged, until they fit in 90% of the limit.
+     * 0 means no limit, which is the default.
+     *
+     * @param eventMaxSizeBytes the event max size in bytes
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventMaxSizeBytes(long eventMaxSizeBytes) {
+        this.eventMaxSizeBytes = eventMaxSizeBytes;
+        return this;
+    }
+
+    /**
+     * Sets how deep objects and arrays may nest in the event properties, user properties and
+     * groups of an event. Deeper objects and arrays are dropped from the event, so a
+     * pathological payload cannot tie up the SDK's background thread. Defaults to 32.
+     *
+     * @param maxPropertyDepth the max property depth, 1 for flat properties
+     * @return the AmplitudeClient
+     * @see #getPropertyLimitExceededCount()
+     */
+    public AmplitudeClient setMaxPropertyDepth(int maxPropertyDepth) {
+        this.maxPropertyDepth = Math.max(1, maxPropertyDepth);
+        return this;
+    }
+
+    /**
+     * Sets how many values, counting every nested object, array and array element, an event's
+     * properties, user properties and groups may hold together. Values past the limit are
+     * dropped from the event. Defaults to 10000.
+     *
+     * @param maxPropertyValues the max number of property values
+     * @return the AmplitudeClient
+     * @see #getPropertyLimitExceededCount()
+     */
+    public AmplitudeClient setMaxPropertyValues(int maxPropertyValues) {
+        this.maxPropertyValues = maxPropertyValues;
+        return this;
+    }
+
+    /**
+     * Sets how long the json of a single event may get, in characters. Property values that
+     * would be written once the event has reached this length are dropped from the event.
+     * A single string value may still take the event up to 1024 characters past it.
+     * Defaults to 512k characters.
+     *
+     * @param maxEventLength the max event length in characters
+     * @return the AmplitudeClient
+     * @see #getPropertyLimitExceededCount()
+     */
+    public AmplitudeClient setMaxEventLength(int maxEventLength) {
+        this.maxEventLength = maxEventLength;
+        return this;
+    }
+
+    /**
+     * Returns the number of events logged by this instance that had part of their properties
+     * dropped for going over the max property depth, max property values or max event length.
+     *
+     * @return the number of events with dropped properties
+     */
+    public long getPropertyLimitExceededCount() {
+        return propertyLimitExceededCount.get();
+    }
+
     /**
      * Sets event upload period millis. The SDK will attempt to batch upload unsent events
      * every eventUploadPeriodMillis milliseconds, or if the unsent event count exceeds the
@@ -439,6 +652,152 @@ public class AmplitudeClient {
         return this;
     }
 
+    /**
+     * Sets the event insert batch window millis. If greater than 0, events logged within this
+     * window are written to the database together in a single transaction (up to
+     * eventInsertMaxBatchSize events at a time), instead of one write per event. Events still
+     * buffered when the process is killed are lost, so keep the window short. Disabled (0) by
+     * default.
+     *
+     * @param eventInsertBatchWindowMillis the event insert batch window millis
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventInsertBatchWindowMillis(long eventInsertBatchWindowMillis) {
+        this.eventInsertBatchWindowMillis = eventInsertBatchWindowMillis;
+        updateInsertBatchSize();
+        return this;
+    }
+
+    /**
+     * Sets event insert max batch size. This controls the maximum number of events written to
+     * the database in a single transaction when the event insert batch window is enabled.
+     *
+     * @param eventInsertMaxBatchSize the event insert max batch size
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventInsertMaxBatchSize(int eventInsertMaxBatchSize) {
+        this.eventInsertMaxBatchSize = eventInsertMaxBatchSize;
+        updateInsertBatchSize();
+        return this;
+    }
+
+    // a smaller batch size flushes the buffered events, so it is applied on logThread
+    private void updateInsertBatchSize() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                applyInsertBatchSize();
+            }
+        });
+    }
+
+    // call on logThread
+    private synchronized void applyInsertBatchSize() {
+        if (eventStore instanceof DatabaseHelper) {
+            ((DatabaseHelper) eventStore).setInsertBatchSize(
+                eventInsertBatchWindowMillis > 0 ? eventInsertMaxBatchSize : 1
+            );
+        }
+    }
+
+    /**
+     * Enable write-ahead logging for the SDK's event database, with {@code synchronous=NORMAL}.
+     * Event inserts and the batch reads for uploads then no longer serialize on the rollback
+     * journal. A power loss may drop the most recently logged events, but cannot corrupt the
+     * database. Disabled by default.
+     *
+     * @param enableWriteAheadLogging whether to use write-ahead logging
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient enableDatabaseWriteAheadLogging(boolean enableWriteAheadLogging) {
+        this.databaseWriteAheadLogging = enableWriteAheadLogging;
+        updateDatabaseOptions();
+        return this;
+    }
+
+    /**
+     * Sets the page size in bytes for the SDK's event database. Must be a power of two between
+     * 512 and 65536. Only takes effect when the database is first created, so call this before
+     * {@code initialize}. 0 keeps the SQLite default.
+     *
+     * @param databasePageSize the database page size in bytes
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setDatabasePageSize(int databasePageSize) {
+        this.databasePageSize = databasePageSize;
+        updateDatabaseOptions();
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of pages the SDK's event database keeps in its page cache.
+     * 0 keeps the SQLite default.
+     *
+     * @param databaseCacheSize the database cache size in pages
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setDatabaseCacheSize(int databaseCacheSize) {
+        this.databaseCacheSize = databaseCacheSize;
+        updateDatabaseOptions();
+        return this;
+    }
+
+    /**
+     * Store unsent events compressed in the SDK's database. Compressed events take up several
+     * times less space and write I/O, at the cost of some CPU when logging and uploading. The
+     * uploaded events are the same either way. Events already stored keep their format.
+     * Disabled by default.
+     *
+     * @param enableEventCompression whether to compress stored events
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient enableEventCompression(boolean enableEventCompression) {
+        this.eventCompression = enableEventCompression;
+        updateDatabaseOptions();
+        return this;
+    }
+
+    // changing the options closes the database, so they are applied on logThread
+    private void updateDatabaseOptions() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                applyDatabaseOptions();
+            }
+        });
+    }
+
+    // call on logThread
+    private synchronized void applyDatabaseOptions() {
+        if (eventStore instanceof DatabaseHelper) {
+            DatabaseHelper dbHelper = (DatabaseHelper) eventStore;
+            dbHelper.setDatabaseOptions(
+                databaseWriteAheadLogging, databasePageSize, databaseCacheSize
+            );
+            dbHelper.setEventCompression(eventCompression);
+        }
+    }
+
+    /**
+     * Sets where unsent events and the SDK's metadata, such as the device id, are stored. By
+     * default they go to the SDK's SQLite database. Use an {@link InMemoryEventStore} to keep
+     * nothing on disk, a {@link FileEventStore} for an append-only file or a
+     * {@link SegmentedEventStore} for memory mapped segment files. The database options above
+     * only apply to the default store. <b>Note:</b> this must be called before
+     * {@code initialize}, events already stored elsewhere are not moved over.
+     *
+     * @param eventStore the event store, or null for the default
+     * @return the AmplitudeClient
+     */
+    public synchronized AmplitudeClient setEventStore(EventStore eventStore) {
+        if (this.eventStore != null) {
+            logger.e(TAG, "setEventStore() must be called before initialize()");
+            return this;
+        }
+        this.customEventStore = eventStore;
+        return this;
+    }
+
     /**
      * Sets min time between sessions millis.
      *
@@ -482,7 +841,7 @@ public class AmplitudeClient {
                     return;
                 }
                 client.optOut = optOut;
-                dbHelper.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
+                eventStore.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
             }
         });
         return this;
@@ -688,6 +1047,38 @@ public class AmplitudeClient {
         }
     }
 
+    /**
+     * Log an event built with an {@link Event.Builder}. The Event cannot change once built, so
+     * it is handed to the background thread without a copy, and its typed properties are
+     * written into the event's json without a JSONObject in between. Events without a
+     * timestamp get the time of this call.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param event the event
+     * @see Event
+     */
+    public void logEvent(final Event event) {
+        if (event == null) {
+            logger.e(TAG, "Argument event cannot be null in logEvent()");
+            return;
+        }
+        if (!validateLogEvent(event.eventType)) {
+            return;
+        }
+
+        final long timestamp = event.timestamp > 0 ? event.timestamp : getCurrentTimeMillis();
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (TextUtils.isEmpty(apiKey)) {  // in case initialization failed
+                    return;
+                }
+                logEvent(event.eventType, null, null, null, null, event, timestamp,
+                    event.outOfSession);
+            }
+        });
+    }
+
     /**
      * Log an event with the specified event type.
      * <b>Note:</b> this is version is synchronous and blocks the main thread until done.
@@ -874,6 +1265,17 @@ public class AmplitudeClient {
      */
     protected long logEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
             JSONObject userProperties, JSONObject groups, long timestamp, boolean outOfSession) {
+        return logEvent(eventType, eventProperties, apiProperties, userProperties, groups, null,
+            timestamp, outOfSession);
+    }
+
+    /*
+        Logs an event with either JSONObject properties and groups, or the typed ones of
+        typedEvent when it is not null. Call on logThread.
+     */
+    private long logEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
+            JSONObject userProperties, JSONObject groups, Event typedEvent, long timestamp,
+            boolean outOfSession) {
         logger.d(TAG, "Logged event to Amplitude: " + eventType);
 
         if (optOut) {
@@ -893,56 +1295,125 @@ public class AmplitudeClient {
             }
         }
 
-        JSONObject event = new JSONObject();
+        long eventSequenceNumber = getNextSequenceNumber();
+        String event;
+        try {
+            event = writeEvent(eventType, timestamp, outOfSession ? -1 : sessionId,
+                eventSequenceNumber, eventProperties, apiProperties, userProperties, groups,
+                typedEvent);
+        } catch (JSONException e) {
+            logger.e(TAG, e.toString());
+            return -1;
+        }
+
+        return saveEvent(eventType, event, eventSequenceNumber, getEventContext());
+    }
+
+    /*
+        Writes the fields that vary per event straight into the reusable event buffer, with
+        the same keys and values the JSONObject form of the event had. Call on logThread.
+     */
+    private String writeEvent(String eventType, long timestamp, long sessionId,
+            long sequenceNumber, JSONObject eventProperties, JSONObject apiProperties,
+            JSONObject userProperties, JSONObject groups, Event typedEvent)
+            throws JSONException {
+        EventWriter writer = eventWriter.reset()
+            .setPropertyLimits(maxPropertyDepth, maxPropertyValues, maxEventLength)
+            .beginObject();
+        writer.key("event_type").value(eventType);
+        writer.key("timestamp").value(timestamp);
+        writer.key("session_id").value(sessionId);
+        writer.key("uuid").value(UUID.randomUUID().toString());
+        writer.key("sequence_number").value(sequenceNumber);
+
+        // the device's values take the place of any the caller passed under the same keys
+        Location location = deviceInfo.getMostRecentLocation();
+        String advertisingId = deviceInfo.getAdvertisingId();
+        writer.key("api_properties").beginObject();
+        if (apiProperties != null) {
+            writer.members(apiProperties, new String[] {
+                location != null ? "location" : null,
+                advertisingId != null ? "androidADID" : null,
+                "limit_ad_tracking", "gps_enabled"
+            });
+        }
+        if (location != null) {
+            writer.key("location").beginObject()
+                .key("lat").value(location.getLatitude())
+                .key("lng").value(location.getLongitude())
+                .endObject();
+        }
+        if (advertisingId != null) {
+            writer.key("androidADID").value(advertisingId);
+        }
+        writer.key("limit_ad_tracking").value(deviceInfo.isLimitAdTrackingEnabled());
+        writer.key("gps_enabled").value(deviceInfo.isGooglePlayServicesEnabled());
+        writer.endObject();
+
+        // truncated as they are written, the caller's objects are left as they are
+        if (typedEvent != null) {
+            typedEvent.writeProperties(writer.key("event_properties"));
+            writer.key("user_properties").truncatedValue(orEmpty(userProperties));
+            typedEvent.writeGroups(writer.key("groups"));
+        } else {
+            writer.key("event_properties").truncatedValue(orEmpty(eventProperties));
+            writer.key("user_properties").truncatedValue(orEmpty(userProperties));
+            writer.key("groups").truncatedValue(orEmpty(groups));
+        }
+        if (writer.isPropertyLimitExceeded()) {
+            propertyLimitExceededCount.incrementAndGet();
+            logger.w(TAG, "Dropped properties of " + eventType + " over the property limits");
+        }
+        return writer.endObject().toString();
+    }
+
+    private static JSONObject orEmpty(JSONObject properties) {
+        return properties == null ? EMPTY_JSON_OBJECT : properties;
+    }
+
+    /**
+     * Returns the fields that stay the same from one event to the next: the user and device
+     * ids, the device info and the library. They are serialized once and only rebuilt when
+     * the device info, user id or device id changes. The event store keeps each distinct
+     * context once and merges it back into the events when they are read. Call on logThread.
+     *
+     * @return the context json
+     */
+    String getEventContext() {
+        if (eventContext != null && eventContextDeviceInfo == deviceInfo &&
+                TextUtils.equals(eventContextUserId, userId) &&
+                TextUtils.equals(eventContextDeviceId, deviceId)) {
+            return eventContext;
+        }
+
+        JSONObject context = new JSONObject();
         try {
-            event.put("event_type", replaceWithJSONNull(eventType));
-            event.put("timestamp", timestamp);
-            event.put("user_id", replaceWithJSONNull(userId));
-            event.put("device_id", replaceWithJSONNull(deviceId));
-            event.put("session_id", outOfSession ? -1 : sessionId);
-            event.put("version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
-            event.put("os_name", replaceWithJSONNull(deviceInfo.getOsName()));
-            event.put("os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
-            event.put("device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
-            event.put("device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
-            event.put("device_model", replaceWithJSONNull(deviceInfo.getModel()));
-            event.put("carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
-            event.put("country", replaceWithJSONNull(deviceInfo.getCountry()));
-            event.put("language", replaceWithJSONNull(deviceInfo.getLanguage()));
-            event.put("platform", Constants.PLATFORM);
-            event.put("uuid", UUID.randomUUID().toString());
-            event.put("sequence_number", getNextSequenceNumber());
+            context.put("user_id", replaceWithJSONNull(userId));
+            context.put("device_id", replaceWithJSONNull(deviceId));
+            context.put("version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
+            context.put("os_name", replaceWithJSONNull(deviceInfo.getOsName()));
+            context.put("os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
+            context.put("device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
+            context.put("device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
+            context.put("device_model", replaceWithJSONNull(deviceInfo.getModel()));
+            context.put("carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
+            context.put("country", replaceWithJSONNull(deviceInfo.getCountry()));
+            context.put("language", replaceWithJSONNull(deviceInfo.getLanguage()));
+            context.put("platform", Constants.PLATFORM);
 
             JSONObject library = new JSONObject();
             library.put("name", Constants.LIBRARY);
             library.put("version", Constants.VERSION);
-            event.put("library", library);
-
-            apiProperties = (apiProperties == null) ? new JSONObject() : apiProperties;
-            Location location = deviceInfo.getMostRecentLocation();
-            if (location != null) {
-                JSONObject locationJSON = new JSONObject();
-                locationJSON.put("lat", location.getLatitude());
-                locationJSON.put("lng", location.getLongitude());
-                apiProperties.put("location", locationJSON);
-            }
-            if (deviceInfo.getAdvertisingId() != null) {
-                apiProperties.put("androidADID", deviceInfo.getAdvertisingId());
-            }
-            apiProperties.put("limit_ad_tracking", deviceInfo.isLimitAdTrackingEnabled());
-            apiProperties.put("gps_enabled", deviceInfo.isGooglePlayServicesEnabled());
-
-            event.put("api_properties", apiProperties);
-            event.put("event_properties", (eventProperties == null) ? new JSONObject()
-                : truncate(eventProperties));
-            event.put("user_properties", (userProperties == null) ? new JSONObject()
-                : truncate(userProperties));
-            event.put("groups", (groups == null) ? new JSONObject() : truncate(groups));
+            context.put("library", library);
         } catch (JSONException e) {
             logger.e(TAG, e.toString());
         }
 
-        return saveEvent(eventType, event);
+        eventContext = context.toString();
+        eventContextDeviceInfo = deviceInfo;
+        eventContextUserId = userId;
+        eventContextDeviceId = deviceId;
+        return eventContext;
     }
 
     /**
@@ -953,26 +1424,51 @@ public class AmplitudeClient {
      * @return the event ID if succeeded, else -1
      */
     protected long saveEvent(String eventType, JSONObject event) {
+        Long sequenceNumber = event.has("sequence_number") ?
+            event.optLong("sequence_number") : null;
+        return saveEvent(eventType, event.toString(), sequenceNumber, null);
+    }
+
+    /**
+     * Save event long. Internal method to save an event json string, along with the context it
+     * shares with other events, to the database.
+     *
+     * @param eventType      the event type
+     * @param event          the event json
+     * @param sequenceNumber the event's sequence number, or null
+     * @param context        the context json from getEventContext(), or null
+     * @return the event ID if succeeded, else -1
+     */
+    protected long saveEvent(String eventType, String event, Long sequenceNumber,
+                             String context) {
         if (eventType.equals(Constants.IDENTIFY_EVENT)) {
-            lastIdentifyId = dbHelper.addIdentify(event.toString());
+            lastIdentifyId = eventStore.addIdentify(event, sequenceNumber, context);
             setLastIdentifyId(lastIdentifyId);
         } else {
-            lastEventId = dbHelper.addEvent(event.toString());
+            lastEventId = eventStore.addEvent(event, sequenceNumber, context);
             setLastEventId(lastEventId);
         }
 
+        if (eventStore.hasPendingWrites()) {
+            flushPendingWritesLater();
+        }
+
         int numEventsToRemove = Math.min(
                 Math.max(1, eventMaxCount/10),
                 Constants.EVENT_REMOVE_BATCH_SIZE
         );
-        if (dbHelper.getEventCount() > eventMaxCount) {
-            dbHelper.removeEvents(dbHelper.getNthEventId(numEventsToRemove));
+        if (eventStore.getEventCount() > eventMaxCount) {
+            eventStore.removeOldestEvents(numEventsToRemove);
+        }
+        if (eventStore.getIdentifyCount() > eventMaxCount) {
+            eventStore.removeOldestIdentifys(numEventsToRemove);
         }
-        if (dbHelper.getIdentifyCount() > eventMaxCount) {
-            dbHelper.removeIdentifys(dbHelper.getNthIdentifyId(numEventsToRemove));
+        if (eventMaxSizeBytes > 0 && eventStore.getTotalEventSize() > eventMaxSizeBytes) {
+            // leave headroom so the inserts that follow do not each evict again
+            eventStore.removeOldestEventsToSize(eventMaxSizeBytes - eventMaxSizeBytes / 10);
         }
 
-        long totalEventCount = dbHelper.getTotalEventCount(); // counts may have changed, refetch
+        long totalEventCount = eventStore.getTotalEventCount(); // counts may have changed, refetch
         if ((totalEventCount % eventUploadThreshold) == 0 &&
                 totalEventCount >= eventUploadThreshold) {
             updateServer(null);
@@ -983,21 +1479,48 @@ public class AmplitudeClient {
         return eventType.equals(Constants.IDENTIFY_EVENT) ? lastIdentifyId : lastEventId;
     }
 
-    // fetches key from dbHelper longValueStore
+    /*
+        The last event and identify ids are deferred writes, so a process killed right after
+        an insert leaves the stored ids behind the events already in the database. Catches them
+        up, and the sequence number for good measure, so nothing stored is left out of the next
+        upload or shares a sequence number with a new event. Call on logThread.
+     */
+    private void catchUpEventMetadata() {
+        if (!(eventStore instanceof DatabaseHelper)) {
+            return;
+        }
+        DatabaseHelper dbHelper = (DatabaseHelper) eventStore;
+        sequenceNumber = Math.max(sequenceNumber, dbHelper.getMaxSequenceNumber());
+        lastEventId = Math.max(lastEventId, dbHelper.getMaxEventId());
+        lastIdentifyId = Math.max(lastIdentifyId, dbHelper.getMaxIdentifyId());
+    }
+
+    // event metadata is cached by the event store and written along with the next event insert
+    private void insertOrReplaceKeyLongValueLater(String key, long value) {
+        eventStore.insertOrReplaceKeyLongValueDeferred(key, value);
+        flushPendingWritesLater();
+    }
+
+    // fetches key from the event store long values
     // if key does not exist, return defaultValue instead
     private long getLongvalue(String key, long defaultValue) {
-        Long value = dbHelper.getLongValue(key);
+        Long value = eventStore.getLongValue(key);
         return value == null ? defaultValue : value;
     }
 
     /**
-     * Internal method to increment and fetch the next event sequence number.
+     * Internal method to increment and fetch the next event sequence number. Sequence numbers
+     * are reserved in blocks of {@code Constants.SEQUENCE_NUMBER_BLOCK_SIZE}, with a single
+     * database write storing the end of each block.
      *
      * @return the next sequence number
      */
     long getNextSequenceNumber() {
         sequenceNumber++;
-        dbHelper.insertOrReplaceKeyLongValue(SEQUENCE_NUMBER_KEY, sequenceNumber);
+        if (sequenceNumber > sequenceNumberBlockEnd) {
+            sequenceNumberBlockEnd = sequenceNumber + Constants.SEQUENCE_NUMBER_BLOCK_SIZE - 1;
+            eventStore.insertOrReplaceKeyLongValue(SEQUENCE_NUMBER_KEY, sequenceNumberBlockEnd);
+        }
         return sequenceNumber;
     }
 
@@ -1008,7 +1531,7 @@ public class AmplitudeClient {
      */
     void setLastEventTime(long timestamp) {
         lastEventTime = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, timestamp);
+        insertOrReplaceKeyLongValueLater(LAST_EVENT_TIME_KEY, timestamp);
     }
 
     /**
@@ -1018,7 +1541,7 @@ public class AmplitudeClient {
      */
     void setLastEventId(long eventId) {
         lastEventId = eventId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_ID_KEY, eventId);
+        insertOrReplaceKeyLongValueLater(LAST_EVENT_ID_KEY, eventId);
     }
 
     /**
@@ -1028,7 +1551,7 @@ public class AmplitudeClient {
      */
     void setLastIdentifyId(long identifyId) {
         lastIdentifyId = identifyId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_IDENTIFY_ID_KEY, identifyId);
+        insertOrReplaceKeyLongValueLater(LAST_IDENTIFY_ID_KEY, identifyId);
     }
 
     /**
@@ -1047,7 +1570,7 @@ public class AmplitudeClient {
      */
     void setPreviousSessionId(long timestamp) {
         previousSessionId = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, timestamp);
+        insertOrReplaceKeyLongValueLater(PREVIOUS_SESSION_ID_KEY, timestamp);
     }
 
     /**
@@ -1160,6 +1683,7 @@ public class AmplitudeClient {
                 }
                 refreshSessionTime(timestamp);
                 inForeground = false;
+                eventStore.flushPendingWrites();
                 if (flushEventsOnClose) {
                     updateServer(null);
                 }
@@ -1512,7 +2036,7 @@ public class AmplitudeClient {
                     return;
                 }
                 client.userId = userId;
-                dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                eventStore.insertOrReplaceKeyValue(USER_ID_KEY, userId);
             }
         });
         return this;
@@ -1541,7 +2065,7 @@ public class AmplitudeClient {
                     return;
                 }
                 client.deviceId = deviceId;
-                dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
+                eventStore.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
             }
         });
         return this;
@@ -1599,6 +2123,57 @@ public class AmplitudeClient {
         }, delayMillis);
     }
 
+    private void flushPendingWritesLater() {
+        if (flushScheduled.getAndSet(true)) {
+            return;
+        }
+
+        long delayMillis = eventInsertBatchWindowMillis > 0 ?
+                eventInsertBatchWindowMillis : Constants.METADATA_FLUSH_DELAY_MILLIS;
+
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                eventStore.flushPendingWrites();
+            }
+        }, delayMillis);
+    }
+
+    /*
+        Once an upload has removed its batch, gives the freed database pages back to the file
+        system the next time the log thread has nothing else to do. Call on logThread.
+     */
+    private void reclaimDatabaseSpaceWhenIdle() {
+        if (!(eventStore instanceof DatabaseHelper) ||
+                !reclaimScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        final DatabaseHelper dbHelper = (DatabaseHelper) eventStore;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                reclaimScheduled.set(false);
+                dbHelper.reclaimFreePages(
+                    Constants.DATABASE_VACUUM_MIN_FREE_PAGES, Constants.DATABASE_VACUUM_MAX_PAGES
+                );
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Returns the number of bytes the SDK's event database file has shrunk by since the app
+     * process started. Free pages left behind by uploaded events are given back to the file
+     * system whenever the SDK is idle after an upload. Always 0 with a custom event store.
+     *
+     * @return the number of bytes reclaimed
+     */
+    public long getDatabaseBytesReclaimed() {
+        EventStore store = eventStore;
+        return store instanceof DatabaseHelper ? ((DatabaseHelper) store).getReclaimedBytes() : 0;
+    }
+
     /**
      * Internal method to upload unsent events.
      */
@@ -1621,7 +2196,7 @@ public class AmplitudeClient {
 
         // if returning out of this block, always be sure to set uploadingCurrently to false!!
         if (!uploadingCurrently.getAndSet(true)) {
-            long totalEventCount = dbHelper.getTotalEventCount();
+            long totalEventCount = eventStore.getTotalEventCount();
             long batchSize = Math.min(
                 limit ? backoffUploadBatchSize : eventUploadMaxBatchSize,
                 totalEventCount
@@ -1633,19 +2208,18 @@ public class AmplitudeClient {
             }
 
             try {
-                List<JSONObject> events = dbHelper.getEvents(lastEventId, batchSize);
-                List<JSONObject> identifys = dbHelper.getIdentifys(lastIdentifyId, batchSize);
-
-                final Pair<Pair<Long, Long>, JSONArray> merged = mergeEventsAndIdentifys(
-                        events, identifys, batchSize);
-                final JSONArray mergedEvents = merged.second;
-                if (mergedEvents.length() == 0) {
+                final Pair<Pair<Long, Long>, String> merged = eventStore.getEventsAndIdentifys(
+                        lastEventId, lastIdentifyId, batchSize);
+                final long maxEventId = merged.first.first;
+                final long maxIdentifyId = merged.first.second;
+                final String mergedEventsString = merged.second;
+                if (mergedEventsString.length() <= 2) {
+                    // empty array, drop any malformed rows that were skipped
+                    if (maxEventId >= 0) eventStore.removeEvents(maxEventId);
+                    if (maxIdentifyId >= 0) eventStore.removeIdentifys(maxIdentifyId);
                     uploadingCurrently.set(false);
                     return;
                 }
-                final long maxEventId = merged.first.first;
-                final long maxIdentifyId = merged.first.second;
-                final String mergedEventsString = merged.second.toString();
 
                 httpThread.post(new Runnable() {
                     @Override
@@ -1653,11 +2227,6 @@ public class AmplitudeClient {
                         makeEventUploadPostRequest(httpClient, mergedEventsString, maxEventId, maxIdentifyId, callback);
                     }
                 });
-            } catch (JSONException e) {
-                uploadingCurrently.set(false);
-                AmplitudeException aE = new AmplitudeException(e);
-                callback.onError(aE);
-                logger.e(TAG, e.toString());
             // handle CursorWindowAllocationException when fetching events, defer upload
             } catch (CursorWindowAllocationException e) {
                 uploadingCurrently.set(false);
@@ -1671,67 +2240,6 @@ public class AmplitudeClient {
         }
     }
 
-    /**
-     * Internal method to merge unsent events and identifies into a single array by sequence number.
-     *
-     * @param events    the events
-     * @param identifys the identifys
-     * @param numEvents the num events
-     * @return the merged array, max event id, and max identify id
-     * @throws JSONException the json exception
-     */
-    protected Pair<Pair<Long,Long>, JSONArray> mergeEventsAndIdentifys(List<JSONObject> events,
-                            List<JSONObject> identifys, long numEvents) throws JSONException {
-        JSONArray merged = new JSONArray();
-        long maxEventId = -1;
-        long maxIdentifyId = -1;
-
-        while (merged.length() < numEvents) {
-            boolean noEvents = events.isEmpty();
-            boolean noIdentifys = identifys.isEmpty();
-
-            // case 0: no events or identifys, nothing to grab
-            // this case should never happen, as it means there are less identifys and events
-            // than expected
-            if (noEvents && noIdentifys) {
-                logger.w(TAG, String.format(
-                    "mergeEventsAndIdentifys: number of events and identifys " +
-                    "less than expected by %d", numEvents - merged.length())
-                );
-                break;
-
-            // case 1: no identifys, grab from events
-            } else if (noIdentifys) {
-                JSONObject event = events.remove(0);
-                maxEventId = event.getLong("event_id");
-                merged.put(event);
-
-            // case 2: no events, grab from identifys
-            } else if (noEvents) {
-                JSONObject identify = identifys.remove(0);
-                maxIdentifyId = identify.getLong("event_id");
-                merged.put(identify);
-
-            // case 3: need to compare sequence numbers
-            } else {
-                // events logged before v2.1.0 won't have a sequence number, put those first
-                if (!events.get(0).has("sequence_number") ||
-                        events.get(0).getLong("sequence_number") <
-                        identifys.get(0).getLong("sequence_number")) {
-                    JSONObject event = events.remove(0);
-                    maxEventId = event.getLong("event_id");
-                    merged.put(event);
-                } else {
-                    JSONObject identify = identifys.remove(0);
-                    maxIdentifyId = identify.getLong("event_id");
-                    merged.put(identify);
-                }
-            }
-        }
-
-        return new Pair<Pair<Long, Long>, JSONArray>(new Pair<Long,Long>(maxEventId, maxIdentifyId), merged);
-    }
-
     /**
      * Internal method to generate the event upload post request.
      *
@@ -1744,31 +2252,26 @@ public class AmplitudeClient {
         String apiVersionString = "" + Constants.API_VERSION;
         String timestampString = "" + getCurrentTimeMillis();
 
-        String checksumString = "";
-        try {
-            String preimage = apiVersionString + apiKey + events + timestampString;
-
-            // MessageDigest.getInstance(String) is not threadsafe on Android.
-            // See https://code.google.com/p/android/issues/detail?id=37937
-            // Use MD5 implementation from http://org.rodage.com/pub/java/security/MD5.java
-            // This implementation does not throw NoSuchAlgorithm exceptions.
-            MessageDigest messageDigest = new MD5();
-            checksumString = bytesToHexString(messageDigest.digest(preimage.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-            // According to
-            // http://stackoverflow.com/questions/5049524/is-java-utf-8-charset-exception-possible,
-            // this will never be thrown
-            logger.e(TAG, e.toString());
-
-        }
-
-        FormBody body = new FormBody.Builder()
-            .add("v", apiVersionString)
-            .add("client", apiKey)
-            .add("e", events)
-            .add("upload_time", timestampString)
-            .add("checksum", checksumString)
-            .build();
+        // the batch is encoded to bytes once, for both the checksum and the form body
+        byte[] eventBytes = Utils.toUtf8(events);
+
+        // MessageDigest.getInstance(String) is not threadsafe on Android.
+        // See https://code.google.com/p/android/issues/detail?id=37937
+        // Use MD5 implementation from http://org.rodage.com/pub/java/security/MD5.java
+        // This implementation does not throw NoSuchAlgorithm exceptions.
+        MessageDigest messageDigest = new MD5();
+        messageDigest.update(Utils.toUtf8(apiVersionString + apiKey));
+        messageDigest.update(eventBytes);
+        messageDigest.update(Utils.toUtf8(timestampString));
+        String checksumString = bytesToHexString(messageDigest.digest());
+
+        RequestBody body = RequestBody.create(FORM_CONTENT_TYPE, Utils.encodeFormBody(
+            new String[] {"v", "client", "e", "upload_time", "checksum"},
+            new byte[][] {
+                Utils.toUtf8(apiVersionString), Utils.toUtf8(apiKey), eventBytes,
+                Utils.toUtf8(timestampString), Utils.toUtf8(checksumString)
+            }
+        ));
 
         Request request = new Request.Builder()
             .url(url)
@@ -1785,10 +2288,11 @@ public class AmplitudeClient {
                 logThread.post(new Runnable() {
                     @Override
                     public void run() {
-                        if (maxEventId >= 0) dbHelper.removeEvents(maxEventId);
-                        if (maxIdentifyId >= 0) dbHelper.removeIdentifys(maxIdentifyId);
+                        if (maxEventId >= 0) eventStore.removeEvents(maxEventId);
+                        if (maxIdentifyId >= 0) eventStore.removeIdentifys(maxIdentifyId);
                         uploadingCurrently.set(false);
-                        if (dbHelper.getTotalEventCount() > eventUploadThreshold) {
+                        reclaimDatabaseSpaceWhenIdle();
+                        if (eventStore.getTotalEventCount() > eventUploadThreshold) {
                             logThread.post(new Runnable() {
                                 @Override
                                 public void run() {
@@ -1814,14 +2318,14 @@ public class AmplitudeClient {
 
                 // If blocked by one massive event, drop it
                 if (backoffUpload && backoffUploadBatchSize == 1) {
-                    if (maxEventId >= 0) dbHelper.removeEvent(maxEventId);
-                    if (maxIdentifyId >= 0) dbHelper.removeIdentify(maxIdentifyId);
+                    if (maxEventId >= 0) eventStore.removeEvent(maxEventId);
+                    if (maxIdentifyId >= 0) eventStore.removeIdentify(maxIdentifyId);
                     // maybe we want to reset backoffUploadBatchSize after dropping massive event
                 }
 
                 // Server complained about length of request, backoff and try again
                 backoffUpload = true;
-                int numEvents = Math.min((int)dbHelper.getEventCount(), backoffUploadBatchSize);
+                int numEvents = Math.min((int)eventStore.getEventCount(), backoffUploadBatchSize);
                 backoffUploadBatchSize = (int)Math.ceil(numEvents / 2.0);
                 logger.w(TAG, "Request too large, will decrease size and attempt to reupload");
                 logThread.post(new Runnable() {
@@ -1890,7 +2394,7 @@ public class AmplitudeClient {
         Set<String> invalidIds = getInvalidDeviceIds();
 
         // see if device id already stored in db
-        String deviceId = dbHelper.getValue(DEVICE_ID_KEY);
+        String deviceId = eventStore.getValue(DEVICE_ID_KEY);
         if (!(TextUtils.isEmpty(deviceId) || invalidIds.contains(deviceId))) {
             return deviceId;
         }
@@ -1901,7 +2405,7 @@ public class AmplitudeClient {
 
             String advertisingId = deviceInfo.getAdvertisingId();
             if (!(TextUtils.isEmpty(advertisingId) || invalidIds.contains(advertisingId))) {
-                dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, advertisingId);
+                eventStore.insertOrReplaceKeyValue(DEVICE_ID_KEY, advertisingId);
                 return advertisingId;
             }
         }
@@ -1909,7 +2413,7 @@ public class AmplitudeClient {
         // If this still fails, generate random identifier that does not persist
         // across installations. Append R to distinguish as randomly generated
         String randomId = deviceInfo.generateUUID() + "R";
-        dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, randomId);
+        eventStore.insertOrReplaceKeyValue(DEVICE_ID_KEY, randomId);
         return randomId;
     }
 
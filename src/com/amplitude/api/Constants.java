@@ -13,17 +13,29 @@ public class Constants {
     public static final int API_VERSION = 2;
 
     public static final String DATABASE_NAME = PACKAGE_NAME;
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 6;
+
+    public static final String DEFAULT_INSTANCE = "$default_instance";
 
     public static final int EVENT_UPLOAD_THRESHOLD = 30;
     public static final int EVENT_UPLOAD_MAX_BATCH_SIZE = 100;
     public static final int EVENT_MAX_COUNT = 1000;
+    public static final long EVENT_MAX_SIZE_BYTES = 0; // no limit
     public static final int EVENT_REMOVE_BATCH_SIZE = 20;
+    public static final int EVENT_READ_CHUNK_SIZE = 256 * 1024; // characters
+    public static final int EVENT_INSERT_MAX_BATCH_SIZE = 50;
+    public static final long SEQUENCE_NUMBER_BLOCK_SIZE = 1000;
     public static final long EVENT_UPLOAD_PERIOD_MILLIS = 30 * 1000; // 30s
+    public static final long METADATA_FLUSH_DELAY_MILLIS = 1000; // 1s
+    public static final long DATABASE_VACUUM_MIN_FREE_PAGES = 64;
+    public static final long DATABASE_VACUUM_MAX_PAGES = 1024;
     public static final long MIN_TIME_BETWEEN_SESSIONS_MILLIS = 5 * 60 * 1000; // 5m
     public static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000; // 30m
     public static final int MAX_STRING_LENGTH = 1024;
     public static final int MAX_PROPERTY_KEYS = 1000;
+    public static final int MAX_PROPERTY_DEPTH = 32;
+    public static final int MAX_PROPERTY_VALUES = 10000;
+    public static final int MAX_EVENT_LENGTH = 512 * 1024; // characters
 
     public static final String SHARED_PREFERENCES_NAME_PREFIX = PACKAGE_NAME;
     public static final String PREFKEY_LAST_EVENT_ID = PACKAGE_NAME + ".lastEventId";
@@ -1,25 +1,38 @@
 package com.amplitude.api;
 
-import android.content.ContentValues;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.text.TextUtils;
+import android.util.Pair;
+
+import com.amplitude.security.MD5;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-class DatabaseHelper extends SQLiteOpenHelper {
+class DatabaseHelper extends SQLiteOpenHelper implements EventStore {
 
-    static DatabaseHelper instance;
+    // one helper, and one database file, per named client instance
+    static final Map<String, DatabaseHelper> instances = new HashMap<String, DatabaseHelper>();
 
     private static final String TAG = "com.amplitude.api.DatabaseHelper";
 
@@ -32,6 +45,17 @@ class DatabaseHelper extends SQLiteOpenHelper {
     protected static final String IDENTIFY_TABLE_NAME = "identifys";
     private static final String ID_FIELD = "id";
     private static final String EVENT_FIELD = "event";
+    private static final String SEQUENCE_NUMBER_FIELD = "sequence_number";
+    private static final String SIZE_FIELD = "size";
+    private static final String CONTEXT_ID_FIELD = "context_id";
+
+    protected static final String CONTEXT_TABLE_NAME = "contexts";
+    private static final String HASH_FIELD = "hash";
+    private static final String CONTEXT_FIELD = "context";
+    private static final String EVENT_ID_KEY = "event_id";
+
+    // PRAGMA auto_vacuum value
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
 
     private static final String CREATE_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
@@ -41,29 +65,112 @@ class DatabaseHelper extends SQLiteOpenHelper {
             + VALUE_FIELD + " INTEGER);";
     private static final String CREATE_EVENTS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + EVENT_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + SEQUENCE_NUMBER_FIELD + " INTEGER, "
+            + SIZE_FIELD + " INTEGER, " + CONTEXT_ID_FIELD + " INTEGER);";
+    private static final String CREATE_CONTEXTS_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + CONTEXT_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + HASH_FIELD + " TEXT UNIQUE NOT NULL, " + CONTEXT_FIELD + " TEXT);";
     private static final String CREATE_IDENTIFYS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + IDENTIFY_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + SEQUENCE_NUMBER_FIELD + " INTEGER, "
+            + SIZE_FIELD + " INTEGER, " + CONTEXT_ID_FIELD + " INTEGER);";
 
     private File file;
 
+    // optional connection settings, applied whenever the connection is opened
+    private boolean writeAheadLogging = false;
+    private int pageSize = 0;
+    private int cacheSize = 0;
+
+    // new rows are stored deflated as blobs, see EventCodec. Existing rows keep their format
+    private boolean compressEvents = false;
+
+    // group commit state: events buffered for a single transaction, with their ids reserved
+    // up front so callers still get the final row id back from addEvent / addIdentify
+    private int insertBatchSize = 1;
+    private List<PendingEvent> pendingEvents = new ArrayList<PendingEvent>();
+    private Map<String, Long> lastReservedIds = new HashMap<String, Long>();
+
+    // write-behind long_store values, persisted with the next event insert or flush
+    private Map<String, Long> pendingLongValues = new LinkedHashMap<String, Long>();
+
+    // row counts per event table, including buffered events. Seeded with a COUNT(*) on first
+    // use after the connection is opened, then kept up to date on every insert and delete
+    private Map<String, Long> eventCounts = new HashMap<String, Long>();
+
+    // bytes of event data per table, including buffered events. Seeded with SUM(size) on
+    // first use, then kept up to date alongside the counts
+    private Map<String, Long> eventSizes = new HashMap<String, Long>();
+
+    // ids of the interned contexts used so far, keyed by the context json
+    private Map<String, Long> contextIds = new HashMap<String, Long>();
+
+    // lower bound on the ids left in each event table. Seeded with MIN(id) on first eviction
+    // and advanced by every range removal, so evicting the oldest rows needs no offset scan
+    private Map<String, Long> minEventIds = new HashMap<String, Long>();
+
+    // bytes given back to the file system by reclaimFreePages since the helper was created
+    private long reclaimedBytes = 0;
+
+    // precompiled statements for the hot paths, keyed by sql and bound to the open connection
+    private Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+    private SQLiteDatabase statementDb;
+
+    // Event batch reads run outside the helper's lock so inserts and deletes are not stalled
+    // behind a large read. Readers hold this lock's read side while they use the connection,
+    // and close() takes the write side so the connection is never closed under a query. With
+    // write-ahead logging the reads also go to a separate read-only connection from the pool
+    private final ReentrantReadWriteLock connectionLock = new ReentrantReadWriteLock();
+
     private static final AmplitudeLog logger = AmplitudeLog.getLogger();
 
     static synchronized DatabaseHelper getDatabaseHelper(Context context) {
-        if (instance == null) {
-            instance = new DatabaseHelper(context.getApplicationContext());
+        return getDatabaseHelper(context, null);
+    }
+
+    static synchronized DatabaseHelper getDatabaseHelper(Context context, String instance) {
+        instance = Utils.normalizeInstanceName(instance);
+        DatabaseHelper dbHelper = instances.get(instance);
+        if (dbHelper == null) {
+            dbHelper = new DatabaseHelper(context.getApplicationContext(), instance);
+            instances.put(instance, dbHelper);
         }
-        return instance;
+        return dbHelper;
+    }
+
+    // the default instance keeps the original database so existing installs find their events
+    /*
+        The instance name becomes part of the file name as it is if it only has letters,
+        digits, underscores and dashes. Any other name is replaced by its md5, so a name with
+        a path separator or "..", for example, cannot point outside the databases directory.
+     */
+    static String getDatabaseNameForInstance(String instance) {
+        instance = Utils.normalizeInstanceName(instance);
+        if (instance.equals(Constants.DEFAULT_INSTANCE)) {
+            return Constants.DATABASE_NAME;
+        }
+        if (!instance.matches("[a-z0-9_-]+")) {
+            instance = "md5_" + getMd5Hex(instance);
+        }
+        return Constants.DATABASE_NAME + "_" + instance;
     }
 
     protected DatabaseHelper(Context context) {
-        super(context, Constants.DATABASE_NAME, null, Constants.DATABASE_VERSION);
-        file = context.getDatabasePath(Constants.DATABASE_NAME);
+        this(context, null);
+    }
+
+    protected DatabaseHelper(Context context, String instance) {
+        super(context, getDatabaseNameForInstance(instance), null, Constants.DATABASE_VERSION);
+        file = context.getDatabasePath(getDatabaseNameForInstance(instance));
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        lastReservedIds.clear();
+        eventCounts.clear();
+        minEventIds.clear();
+        eventSizes.clear();
+        contextIds.clear();
         db.execSQL(CREATE_STORE_TABLE);
         db.execSQL(CREATE_LONG_STORE_TABLE);
         // INTEGER PRIMARY KEY AUTOINCREMENT guarantees that all generated values
@@ -71,10 +178,63 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // lifetime of the table, even if rows get removed
         db.execSQL(CREATE_EVENTS_TABLE);
         db.execSQL(CREATE_IDENTIFYS_TABLE);
+        db.execSQL(CREATE_CONTEXTS_TABLE);
+        createSequenceNumberIndex(db, EVENT_TABLE_NAME);
+        createSequenceNumberIndex(db, IDENTIFY_TABLE_NAME);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // page_size only takes effect before the first table is created
+        if (pageSize > 0) {
+            db.execSQL("PRAGMA page_size = " + pageSize);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (writeAheadLogging && !db.isReadOnly() &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // readers no longer block on the writer, so it is safe to relax syncing to once per
+            // checkpoint. A power loss can drop the last commits but never corrupt the file
+            db.enableWriteAheadLogging();
+            db.execSQL("PRAGMA synchronous = NORMAL");
+        } else if (!writeAheadLogging && !db.isReadOnly() &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // the journal mode is persisted in the file, so switch back if it was enabled before
+            db.disableWriteAheadLogging();
+        }
+        if (cacheSize > 0) {
+            db.execSQL("PRAGMA cache_size = " + cacheSize);
+        }
+    }
+
+    /*
+        Sets the journal mode and pragmas used for the connection. Reopens the connection if
+        it is already open so the settings apply right away.
+     */
+    synchronized void setDatabaseOptions(boolean writeAheadLogging, int pageSize, int cacheSize) {
+        if (this.writeAheadLogging == writeAheadLogging && this.pageSize == pageSize &&
+                this.cacheSize == cacheSize) {
+            return;
+        }
+        this.writeAheadLogging = writeAheadLogging;
+        this.pageSize = pageSize;
+        this.cacheSize = cacheSize;
+        close();
+    }
+
+    synchronized void setEventCompression(boolean compressEvents) {
+        this.compressEvents = compressEvents;
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        lastReservedIds.clear();
+        eventCounts.clear();
+        minEventIds.clear();
+        eventSizes.clear();
+        contextIds.clear();
         if (oldVersion > newVersion) {
             logger.e(TAG, "onUpgrade() with invalid oldVersion and newVersion");
             resetDatabase(db);
@@ -96,6 +256,22 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 if (newVersion <= 3) break;
 
             case 3:
+                addSequenceNumberColumn(db, EVENT_TABLE_NAME);
+                addSequenceNumberColumn(db, IDENTIFY_TABLE_NAME);
+                if (newVersion <= 4) break;
+
+            case 4:
+                addSizeColumn(db, EVENT_TABLE_NAME);
+                addSizeColumn(db, IDENTIFY_TABLE_NAME);
+                if (newVersion <= 5) break;
+
+            case 5:
+                db.execSQL(CREATE_CONTEXTS_TABLE);
+                addColumnIfMissing(db, EVENT_TABLE_NAME, CONTEXT_ID_FIELD);
+                addColumnIfMissing(db, IDENTIFY_TABLE_NAME, CONTEXT_ID_FIELD);
+                if (newVersion <= 6) break;
+
+            case 6:
                 break;
 
             default:
@@ -104,41 +280,106 @@ class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private static void createSequenceNumberIndex(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_" + SEQUENCE_NUMBER_FIELD
+                + " ON " + table + " (" + SEQUENCE_NUMBER_FIELD + ")");
+    }
+
+    /*
+        v4 keeps each event's sequence number in its own indexed column so upload batches can be
+        ordered in SQL. Existing rows are backfilled from their JSON. Rows logged before v2.1.0
+        have no sequence number and keep NULL, which sorts first.
+     */
+    private static void addSequenceNumberColumn(SQLiteDatabase db, String table) {
+        addColumnIfMissing(db, table, SEQUENCE_NUMBER_FIELD);
+
+        SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET "
+                + SEQUENCE_NUMBER_FIELD + " = ? WHERE " + ID_FIELD + " = ?");
+        Cursor cursor = db.rawQuery("SELECT " + ID_FIELD + ", " + EVENT_FIELD + " FROM " + table
+                + " WHERE " + SEQUENCE_NUMBER_FIELD + " IS NULL", null);
+        try {
+            while (cursor.moveToNext()) {
+                try {
+                    JSONObject event = new JSONObject(cursor.getString(1));
+                    if (event.has("sequence_number")) {
+                        update.bindLong(1, event.getLong("sequence_number"));
+                        update.bindLong(2, cursor.getLong(0));
+                        update.executeUpdateDelete();
+                    }
+                } catch (JSONException e) {
+                    logger.w(TAG, String.format("Skipping unparseable row %d in %s",
+                            cursor.getLong(0), table));
+                }
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
+        createSequenceNumberIndex(db, table);
+    }
+
+    /*
+        v5 records each row's size in bytes so the store can be held to a byte budget.
+     */
+    private static void addSizeColumn(SQLiteDatabase db, String table) {
+        addColumnIfMissing(db, table, SIZE_FIELD);
+        db.execSQL("UPDATE " + table + " SET " + SIZE_FIELD + " = LENGTH(CAST(" + EVENT_FIELD
+                + " AS BLOB)) WHERE " + SIZE_FIELD + " IS NULL");
+    }
+
+    // the identifys table is created with the current schema when upgrading from v2
+    private static void addColumnIfMissing(SQLiteDatabase db, String table, String column) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(1))) {
+                    return;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " INTEGER");
+    }
+
     private void resetDatabase(SQLiteDatabase db) {
         db.execSQL("DROP TABLE IF EXISTS " + STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + LONG_STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + IDENTIFY_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + CONTEXT_TABLE_NAME);
         onCreate(db);
     }
 
-    synchronized long insertOrReplaceKeyValue(String key, String value) {
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
         return value == null ? deleteKeyFromTable(STORE_TABLE_NAME, key) :
             insertOrReplaceKeyValueToTable(STORE_TABLE_NAME, key, value);
     }
 
-    synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        pendingLongValues.remove(key);
         return value == null ? deleteKeyFromTable(LONG_STORE_TABLE_NAME, key) :
             insertOrReplaceKeyValueToTable(LONG_STORE_TABLE_NAME, key, value);
     }
 
+    /*
+        Caches the value and persists it later, coalesced with other deferred values in the
+        same transaction as the next event insert, or on the next flushPendingWrites().
+        getLongValue sees the cached value immediately.
+     */
+    @Override
+    public synchronized void insertOrReplaceKeyLongValueDeferred(String key, long value) {
+        pendingLongValues.put(key, value);
+    }
+
     synchronized long insertOrReplaceKeyValueToTable(String table, String key, Object value) {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(KEY_FIELD, key);
-            if (value instanceof Long) {
-                contentValues.put(VALUE_FIELD, (Long) value);
-            } else {
-                contentValues.put(VALUE_FIELD, (String) value);
-            }
-            result = db.insertWithOnConflict(
-                    table,
-                    null,
-                    contentValues,
-                    SQLiteDatabase.CONFLICT_REPLACE
-            );
+            result = executeInsert(db, "INSERT OR REPLACE INTO " + table + " (" + KEY_FIELD
+                    + ", " + VALUE_FIELD + ") VALUES (?, ?)", key, value);
             if (result == -1) {
                 logger.w(TAG, "Insert failed");
             }
@@ -146,8 +387,6 @@ class DatabaseHelper extends SQLiteOpenHelper {
             logger.e(TAG, "insertOrReplaceKeyValue failed", e);
             // Not much we can do, just start fresh
             delete();
-        } finally {
-            close();
         }
         return result;
     }
@@ -156,48 +395,292 @@ class DatabaseHelper extends SQLiteOpenHelper {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
-            result = db.delete(table, KEY_FIELD + "=?", new String[]{key});
+            SQLiteStatement statement = getStatement(
+                db, "DELETE FROM " + table + " WHERE " + KEY_FIELD + " = ?"
+            );
+            statement.bindString(1, key);
+            result = statement.executeUpdateDelete();
         } catch (SQLiteException e) {
             logger.e(TAG, "deleteKeyFromTable failed", e);
-        } finally {
-            close();
         }
         return result;
     }
 
     synchronized long addEvent(String event) {
-        return addEventToTable(EVENT_TABLE_NAME, event);
+        return addEventToTable(EVENT_TABLE_NAME, event, null, null);
+    }
+
+    synchronized long addEvent(String event, Long sequenceNumber) {
+        return addEventToTable(EVENT_TABLE_NAME, event, sequenceNumber, null);
+    }
+
+    @Override
+    public synchronized long addEvent(String event, Long sequenceNumber, String context) {
+        return addEventToTable(EVENT_TABLE_NAME, event, sequenceNumber, context);
     }
 
     synchronized long addIdentify(String identifyEvent) {
-        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent);
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, null, null);
+    }
+
+    synchronized long addIdentify(String identifyEvent, Long sequenceNumber) {
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, sequenceNumber, null);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent, Long sequenceNumber, String context) {
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, sequenceNumber, context);
     }
 
-    private synchronized long addEventToTable(String table, String event) {
+    /*
+        The context is a json object of fields shared by many events, such as the device and
+        library info. It is stored once in the contexts table and merged back into the event
+        when it is read.
+     */
+    private synchronized long addEventToTable(
+            String table, String event, Long sequenceNumber, String context) {
+        if (insertBatchSize > 1) {
+            return addPendingEventToTable(table, event, sequenceNumber, context);
+        }
+
         long result = -1;
+        Object stored = compressEvents ? EventCodec.encode(event) : event;
+        long size = getStoredSize(stored);
         try {
             SQLiteDatabase db = getWritableDatabase();
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(EVENT_FIELD, event);
-            result = db.insert(table, null, contentValues);
+            db.beginTransaction();
+            try {
+                result = insertEvent(db, "INSERT INTO " + table + " (" + EVENT_FIELD + ", "
+                        + SEQUENCE_NUMBER_FIELD + ", " + SIZE_FIELD + ", " + CONTEXT_ID_FIELD
+                        + ") VALUES (?, ?, ?, ?)", stored, sequenceNumber, size,
+                        internContext(db, context));
+                writePendingLongValues(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
             if (result == -1) {
                 logger.w(TAG, String.format("Insert into %s failed", table));
+            } else {
+                updateEventCount(table, 1, size);
+                // the insert took the next id itself, reseed the reserved ids if batching resumes
+                lastReservedIds.remove(table);
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("addEvent to %s failed", table), e);
+            // Not much we can do, just start fresh
+            delete();
+        }
+        return result;
+    }
+
+    private synchronized long addPendingEventToTable(
+            String table, String event, Long sequenceNumber, String context) {
+        long result = -1;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            Long contextId = internContext(db, context);
+            result = reserveEventId(db, table);
+            PendingEvent pending = new PendingEvent(
+                table, result, compressEvents ? EventCodec.encode(event) : event, sequenceNumber,
+                contextId
+            );
+            pendingEvents.add(pending);
+            updateEventCount(table, 1, pending.size);
+            if (pendingEvents.size() >= insertBatchSize) {
+                flushPendingWrites();
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("addEvent to %s failed", table), e);
             // Not much we can do, just start fresh
             delete();
-        } finally {
-            close();
         }
         return result;
     }
 
-    synchronized String getValue(String key) {
+    /*
+        Returns the id of the stored context, adding it if it is new. Contexts are keyed by
+        their md5 so the unique index stays small.
+     */
+    private Long internContext(SQLiteDatabase db, String context) {
+        if (context == null) {
+            return null;
+        }
+        Long contextId = contextIds.get(context);
+        if (contextId != null) {
+            return contextId;
+        }
+
+        String hash = getMd5Hex(context);
+        executeInsert(db, "INSERT OR IGNORE INTO " + CONTEXT_TABLE_NAME + " (" + HASH_FIELD
+                + ", " + CONTEXT_FIELD + ") VALUES (?, ?)", hash, context);
+        SQLiteStatement statement = getStatement(db, "SELECT " + ID_FIELD + " FROM "
+                + CONTEXT_TABLE_NAME + " WHERE " + HASH_FIELD + " = ?");
+        statement.bindString(1, hash);
+        contextId = statement.simpleQueryForLong();
+        contextIds.put(context, contextId);
+        return contextId;
+    }
+
+    private static String getMd5Hex(String value) {
+        byte[] digest = new MD5().digest(Utils.toUtf8(value));
+        StringBuilder hash = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hash.append(Character.forDigit((b >> 4) & 0xF, 16))
+                .append(Character.forDigit(b & 0xF, 16));
+        }
+        return hash.toString();
+    }
+
+    /*
+        Contexts are only dropped once both event tables are empty, usually right after an
+        upload. They change rarely, so the few left over until then are not worth tracking.
+     */
+    private void removeUnusedContexts(SQLiteDatabase db) {
+        if (getEventCountFromTable(EVENT_TABLE_NAME) > 0 ||
+                getEventCountFromTable(IDENTIFY_TABLE_NAME) > 0) {
+            return;
+        }
+        getStatement(db, "DELETE FROM " + CONTEXT_TABLE_NAME).executeUpdateDelete();
+        contextIds.clear();
+    }
+
+    /*
+        Hands out the next AUTOINCREMENT id for the table without touching the table itself.
+        Seeded once from sqlite_sequence, so ids stay monotonic even after rows are removed.
+     */
+    private long reserveEventId(SQLiteDatabase db, String table) {
+        Long lastId = lastReservedIds.get(table);
+        if (lastId == null) {
+            SQLiteStatement statement = getStatement(
+                db, "SELECT COALESCE(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?"
+            );
+            statement.bindString(1, table);
+            lastId = statement.simpleQueryForLong();
+        }
+        long nextId = lastId + 1;
+        lastReservedIds.put(table, nextId);
+        return nextId;
+    }
+
+    /*
+        Writes all buffered events and deferred long_store values in a single transaction.
+     */
+    @Override
+    public synchronized void flushPendingWrites() {
+        if (pendingEvents.isEmpty() && pendingLongValues.isEmpty()) {
+            return;
+        }
+
+        // swap the buffer out first, a failed flush resets the database which closes it
+        List<PendingEvent> events = pendingEvents;
+        pendingEvents = new ArrayList<PendingEvent>();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (PendingEvent pending : events) {
+                    String sql = "INSERT INTO " + pending.table + " (" + ID_FIELD + ", "
+                            + EVENT_FIELD + ", " + SEQUENCE_NUMBER_FIELD + ", " + SIZE_FIELD
+                            + ", " + CONTEXT_ID_FIELD + ") VALUES (?, ?, ?, ?, ?)";
+                    if (insertEvent(db, sql, pending.id, pending.event,
+                            pending.sequenceNumber, pending.size, pending.contextId) == -1) {
+                        logger.w(TAG, String.format("Insert into %s failed", pending.table));
+                        updateEventCount(pending.table, -1, -pending.size);
+                    }
+                }
+                writePendingLongValues(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "flushPendingWrites failed", e);
+            // Not much we can do, just start fresh
+            delete();
+        }
+    }
+
+    // must be called inside a transaction, the values are dropped if it fails
+    private void writePendingLongValues(SQLiteDatabase db) {
+        if (pendingLongValues.isEmpty()) {
+            return;
+        }
+        Map<String, Long> values = pendingLongValues;
+        pendingLongValues = new LinkedHashMap<String, Long>();
+        String sql = "INSERT OR REPLACE INTO " + LONG_STORE_TABLE_NAME + " (" + KEY_FIELD + ", "
+                + VALUE_FIELD + ") VALUES (?, ?)";
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            executeInsert(db, sql, entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized boolean hasPendingWrites() {
+        return !pendingEvents.isEmpty() || !pendingLongValues.isEmpty();
+    }
+
+    /*
+        Number of event inserts to group into a single transaction. 1 writes every event
+        through immediately.
+     */
+    synchronized void setInsertBatchSize(int insertBatchSize) {
+        this.insertBatchSize = Math.max(1, insertBatchSize);
+        if (pendingEvents.size() >= this.insertBatchSize) {
+            flushPendingWrites();
+        }
+    }
+
+    // adjusts a seeded count and size, unseeded ones are fetched from the table when next needed
+    private void updateEventCount(String table, long delta, long bytes) {
+        Long count = eventCounts.get(table);
+        if (count != null) {
+            eventCounts.put(table, Math.max(0, count + delta));
+        }
+        Long size = eventSizes.get(table);
+        if (size != null) {
+            eventSizes.put(table, Math.max(0, size + bytes));
+        }
+    }
+
+    private static long getStoredSize(Object stored) {
+        return stored instanceof byte[] ? ((byte[]) stored).length : getEventSize((String) stored);
+    }
+
+    // utf-8 length of the event, the size the row takes up in the database
+    static long getEventSize(String event) {
+        if (event == null) {
+            return 0;
+        }
+        long size = 0;
+        for (int i = 0; i < event.length(); i++) {
+            char c = event.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < event.length() &&
+                    Character.isLowSurrogate(event.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
         return (String) getValueFromTable(STORE_TABLE_NAME, key);
     }
 
-    synchronized Long getLongValue(String key) {
+    @Override
+    public synchronized Long getLongValue(String key) {
+        Long pending = pendingLongValues.get(key);
+        if (pending != null) {
+            return pending;
+        }
         return (Long) getValueFromTable(LONG_STORE_TABLE_NAME, key);
     }
 
@@ -221,39 +704,62 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
         }
         return value;
     }
 
-    synchronized List<JSONObject> getEvents(
-                                        long upToId, long limit) throws JSONException {
+    List<JSONObject> getEvents(long upToId, long limit) throws JSONException {
         return getEventsFromTable(EVENT_TABLE_NAME, upToId, limit);
     }
 
-    synchronized List<JSONObject> getIdentifys(
-                                        long upToId, long limit) throws JSONException {
+    List<JSONObject> getIdentifys(long upToId, long limit) throws JSONException {
         return getEventsFromTable(IDENTIFY_TABLE_NAME, upToId, limit);
     }
 
-    protected synchronized List<JSONObject> getEventsFromTable(
+    // only the flush and connection lookup hold the helper's lock, see openForRead
+    protected List<JSONObject> getEventsFromTable(
                                     String table, long upToId, long limit) throws JSONException {
         List<JSONObject> events = new LinkedList<JSONObject>();
+        Map<Long, String> contexts = new HashMap<Long, String>();
         Cursor cursor = null;
+        SQLiteStatement contextReader = null;
+        boolean locked = false;
         try {
-            SQLiteDatabase db = getReadableDatabase();
+            SQLiteDatabase db = openForRead();
+            locked = true;
             cursor = queryDb(
-                db, table, new String[] { ID_FIELD, EVENT_FIELD },
+                db, table, new String[] {
+                    ID_FIELD, EVENT_FIELD, "TYPEOF(" + EVENT_FIELD + ")", CONTEXT_ID_FIELD
+                },
                 upToId >= 0 ? ID_FIELD + " <= " + upToId : null, null, null, null,
                 ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
             );
 
             while (cursor.moveToNext()) {
                 long eventId = cursor.getLong(0);
-                String event = cursor.getString(1);
+                String event = "blob".equals(cursor.getString(2)) ?
+                        EventCodec.decode(cursor.getBlob(1)) : cursor.getString(1);
+                if (event == null) {
+                    logger.w(TAG, String.format("Skipping unreadable event %d", eventId));
+                    continue;
+                }
 
                 JSONObject obj = new JSONObject(event);
-                obj.put("event_id", eventId);
+                obj.put(EVENT_ID_KEY, eventId);
+                if (!cursor.isNull(3)) {
+                    if (contextReader == null) {
+                        contextReader = compileContextReader(db);
+                    }
+                    String context = readContext(contextReader, contexts, cursor.getLong(3));
+                    if (context != null) {
+                        JSONObject contextObj = new JSONObject(context);
+                        Iterator<?> keys = contextObj.keys();
+                        while (keys.hasNext()) {
+                            String key = (String) keys.next();
+                            obj.put(key, contextObj.get(key));
+                        }
+                    }
+                }
                 events.add(obj);
             }
         } catch (SQLiteException e) {
@@ -264,119 +770,799 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            if (contextReader != null) {
+                contextReader.close();
+            }
+            if (locked) {
+                connectionLock.readLock().unlock();
+            }
         }
         return events;
     }
 
-    synchronized long getEventCount() {
+    /*
+        Reads the oldest events and identifys as a single upload batch, merged by sequence number
+        in one indexed query. Rows without a sequence number (logged before v2.1.0) come first.
+        The stored strings are written straight into the json array for the upload, with
+        event_id spliced in, rather than parsed and serialized again. Returns the max event id
+        and max identify id in the batch, -1 if there are none, along with the array.
+
+        The ordered query only returns ids and measured lengths, so its cursor window stays
+        small however large the events are. Each event is then read through a compiled
+        statement, which returns the value without a cursor window, in pieces of at most
+        EVENT_READ_CHUNK_SIZE characters. Compressed rows are read the same way, as hex, and
+        decoded. The shared context of each row is read once per batch and spliced in after
+        event_id.
+     */
+    @Override
+    public Pair<Pair<Long, Long>, String> getEventsAndIdentifys(
+            long upToEventId, long upToIdentifyId, long limit) {
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        StringBuilder events = new StringBuilder("[");
+        List<long[]> rows = new ArrayList<long[]>();
+        Map<Long, String> contexts = new HashMap<Long, String>();
+        Cursor cursor = null;
+        // text readers for events and identifys, the context reader, then compressed readers
+        SQLiteStatement[] readers = new SQLiteStatement[5];
+        boolean locked = false;
+        try {
+            SQLiteDatabase db = openForRead();
+            locked = true;
+            cursor = rawQueryDb(db, getMergedBatchQuery(
+                "LENGTH(" + EVENT_FIELD + "), TYPEOF(" + EVENT_FIELD + ") = 'blob', "
+                + "COALESCE(" + CONTEXT_ID_FIELD + ", -1)",
+                upToEventId, upToIdentifyId, limit
+            ), null);
+            while (cursor.moveToNext()) {
+                rows.add(new long[] {
+                    cursor.getInt(0), cursor.getLong(1), cursor.getLong(2), cursor.getInt(3),
+                    cursor.getLong(4)
+                });
+            }
+            cursor.close();
+            cursor = null;
+
+            // not the shared statement cache, that is only safe under the helper's lock
+            readers[0] = compileEventReader(db, EVENT_TABLE_NAME);
+            readers[1] = compileEventReader(db, IDENTIFY_TABLE_NAME);
+            readers[2] = compileContextReader(db);
+            for (long[] row : rows) {
+                long eventId = row[1];
+                // a row that is not a json object is dropped, but still counted towards the
+                // max ids so it is removed along with the rest of the batch
+                int type = (int) row[0];
+                String event;
+                if (row[3] == 0) {
+                    event = readEvent(readers[type], eventId, row[2]);
+                } else {
+                    if (readers[3 + type] == null) {
+                        readers[3 + type] = compileCompressedEventReader(db,
+                                type == 0 ? EVENT_TABLE_NAME : IDENTIFY_TABLE_NAME);
+                    }
+                    event = readCompressedEvent(readers[3 + type], eventId, row[2]);
+                }
+                String context = row[4] < 0 ? null : readContext(readers[2], contexts, row[4]);
+                if (!appendEventWithId(events, event, eventId, context)) {
+                    logger.w(TAG, String.format("Skipping malformed event %d", eventId));
+                }
+                if (type == 0) {
+                    maxEventId = eventId;
+                } else {
+                    maxIdentifyId = eventId;
+                }
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "getEventsAndIdentifys failed", e);
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            for (SQLiteStatement reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+            if (locked) {
+                connectionLock.readLock().unlock();
+            }
+        }
+        return new Pair<Pair<Long, Long>, String>(
+                new Pair<Long, Long>(maxEventId, maxIdentifyId), events.append(']').toString());
+    }
+
+    private static SQLiteStatement compileEventReader(SQLiteDatabase db, String table) {
+        return db.compileStatement("SELECT SUBSTR(" + EVENT_FIELD + ", ?, ?) FROM " + table
+                + " WHERE " + ID_FIELD + " = ?");
+    }
+
+    /*
+        Reads a stored event of the given length in characters, in as many pieces as needed.
+        Returns null if the row has been removed since it was listed.
+     */
+    private static String readEvent(SQLiteStatement reader, long eventId, long length) {
+        long chunkSize = Constants.EVENT_READ_CHUNK_SIZE;
+        if (length <= chunkSize) {
+            return readEventPiece(reader, eventId, 1, length);
+        }
+        StringBuilder event = new StringBuilder((int) length);
+        for (long start = 1; start <= length; start += chunkSize) {
+            String piece = readEventPiece(
+                reader, eventId, start, Math.min(chunkSize, length - start + 1)
+            );
+            if (piece == null) {
+                return null;
+            }
+            event.append(piece);
+        }
+        return event.toString();
+    }
+
+    private static SQLiteStatement compileContextReader(SQLiteDatabase db) {
+        return db.compileStatement("SELECT " + CONTEXT_FIELD + " FROM " + CONTEXT_TABLE_NAME
+                + " WHERE " + ID_FIELD + " = ?");
+    }
+
+    // contexts already read are kept in the map, a batch usually shares one or two
+    private static String readContext(
+            SQLiteStatement reader, Map<Long, String> contexts, long contextId) {
+        if (contexts.containsKey(contextId)) {
+            return contexts.get(contextId);
+        }
+        String context = null;
+        reader.bindLong(1, contextId);
+        try {
+            context = reader.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            logger.w(TAG, String.format("Missing event context %d", contextId));
+        }
+        contexts.put(contextId, context);
+        return context;
+    }
+
+    // a statement only returns text or numbers, so the bytes are read as hex
+    private static SQLiteStatement compileCompressedEventReader(SQLiteDatabase db, String table) {
+        return db.compileStatement("SELECT HEX(SUBSTR(" + EVENT_FIELD + ", ?, ?)) FROM " + table
+                + " WHERE " + ID_FIELD + " = ?");
+    }
+
+    /*
+        Reads a compressed event of the given length in bytes, in pieces of at most
+        EVENT_READ_CHUNK_SIZE hex characters, and decodes it. Returns null if the row has been
+        removed or changed since it was listed.
+     */
+    private static String readCompressedEvent(SQLiteStatement reader, long eventId, long length) {
+        byte[] row = new byte[(int) length];
+        long chunkSize = Constants.EVENT_READ_CHUNK_SIZE / 2;
+        for (long start = 1; start <= length; start += chunkSize) {
+            long pieceLength = Math.min(chunkSize, length - start + 1);
+            String piece = readEventPiece(reader, eventId, start, pieceLength);
+            if (piece == null || piece.length() != 2 * pieceLength) {
+                return null;
+            }
+            int offset = (int) start - 1;
+            for (int i = 0; i < piece.length(); i += 2) {
+                row[offset + i / 2] = (byte) (Character.digit(piece.charAt(i), 16) << 4
+                        | Character.digit(piece.charAt(i + 1), 16));
+            }
+        }
+        return EventCodec.decode(row);
+    }
+
+    private static String readEventPiece(
+            SQLiteStatement reader, long eventId, long start, long length) {
+        reader.bindLong(1, start);
+        reader.bindLong(2, length);
+        reader.bindLong(3, eventId);
+        try {
+            return reader.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+    static boolean appendEventWithId(StringBuilder events, String event, long eventId) {
+        return appendEventWithId(events, event, eventId, null);
+    }
+
+    /*
+        Appends the stored event object to the json array being built, with the row id inserted
+        as its first key followed by the members of the context object, if any. Members of the
+        event under event_id or a key of the context are left out, as they were replaced when
+        rows were merged through JSONObject.put. Returns false and appends nothing if the string
+        is not an object.
+     */
+    static boolean appendEventWithId(
+            StringBuilder events, String event, long eventId, String context) {
+        if (event == null) {
+            return false;
+        }
+        int start = 0;
+        int end = event.length();
+        while (start < end && Character.isWhitespace(event.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(event.charAt(end - 1))) {
+            end--;
+        }
+        if (end - start < 2 || event.charAt(start) != '{' || event.charAt(end - 1) != '}') {
+            return false;
+        }
+
+        int body = start + 1;
+        while (Character.isWhitespace(event.charAt(body))) {
+            body++;
+        }
+        if (events.length() > 1) {
+            events.append(',');
+        }
+        events.append("{\"").append(EVENT_ID_KEY).append("\":").append(eventId);
+        // contexts are written by JSONObject.toString, so there is no whitespace to trim
+        if (context != null && context.length() > 2) {
+            events.append(',').append(context, 1, context.length() - 1);
+        }
+
+        // copy the event's top level members one at a time, from after the opening brace to
+        // the comma or closing brace that ends each of them
+        int member = body;
+        int keyStart = -1;
+        int keyEnd = -1;
+        int depth = 0;
+        for (int i = body; i < end; i++) {
+            char c = event.charAt(i);
+            if (c == '"') {
+                int close = closingQuote(event, i);
+                if (depth == 0 && keyStart < 0) {
+                    keyStart = i + 1;
+                    keyEnd = close;
+                }
+                i = close;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (depth > 0 && (c == '}' || c == ']')) {
+                depth--;
+            } else if (depth == 0 && (c == ',' || i == end - 1)) {
+                if (keyStart >= 0 && !isReplacedKey(event, keyStart, keyEnd, context)) {
+                    events.append(',').append(event, member, i);
+                }
+                member = i + 1;
+                keyStart = -1;
+            }
+        }
+        events.append('}');
+        return true;
+    }
+
+    private static boolean isReplacedKey(String event, int keyStart, int keyEnd, String context) {
+        int length = keyEnd - keyStart;
+        if (length == EVENT_ID_KEY.length()
+                && event.regionMatches(keyStart, EVENT_ID_KEY, 0, length)) {
+            return true;
+        }
+        if (context == null) {
+            return false;
+        }
+        // the context's top level keys are the strings right after its opening brace or a comma
+        int depth = 0;
+        boolean atKey = false;
+        for (int i = 0; i < context.length(); i++) {
+            char c = context.charAt(i);
+            if (c == '"') {
+                int close = closingQuote(context, i);
+                if (atKey && close - i - 1 == length
+                        && context.regionMatches(i + 1, event, keyStart, length)) {
+                    return true;
+                }
+                atKey = false;
+                i = close;
+            } else if (c == '{' || c == '[') {
+                depth++;
+                atKey = depth == 1;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == ',') {
+                atKey = depth == 1;
+            }
+        }
+        return false;
+    }
+
+    // index of the quote closing the json string that opens at start, or the length if none
+    private static int closingQuote(String json, int start) {
+        for (int i = start + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return json.length();
+    }
+
+    /*
+        Lists (type, id, column) for the oldest rows of both tables in upload order, where type
+        is 0 for events and 1 for identifys.
+     */
+    private static String getMergedBatchQuery(
+            String column, long upToEventId, long upToIdentifyId, long limit) {
+        return "SELECT * FROM ("
+                + getBatchQuery(EVENT_TABLE_NAME, 0, column, upToEventId, limit)
+                + ") UNION ALL SELECT * FROM ("
+                + getBatchQuery(IDENTIFY_TABLE_NAME, 1, column, upToIdentifyId, limit)
+                + ") ORDER BY " + SEQUENCE_NUMBER_FIELD + " ASC, type ASC, "
+                + ID_FIELD + " ASC" + (limit >= 0 ? " LIMIT " + limit : "");
+    }
+
+    // each side is limited too so the merge only walks the rows it can return
+    private static String getBatchQuery(
+            String table, int type, String column, long upToId, long limit) {
+        return "SELECT " + type + " AS type, " + ID_FIELD + ", " + column + ", "
+                + SEQUENCE_NUMBER_FIELD + " FROM " + table
+                + (upToId >= 0 ? " WHERE " + ID_FIELD + " <= " + upToId : "")
+                + " ORDER BY " + SEQUENCE_NUMBER_FIELD + " ASC, " + ID_FIELD + " ASC"
+                + (limit >= 0 ? " LIMIT " + limit : "");
+    }
+
+    /*
+        Flushes buffered writes and returns the connection with the read side of the connection
+        lock held. The caller must release it once done with the connection, without calling
+        back into synchronized methods in between.
+     */
+    private synchronized SQLiteDatabase openForRead() {
+        flushPendingWrites();
+        SQLiteDatabase db = getReadableDatabase();
+        connectionLock.readLock().lock();
+        return db;
+    }
+
+    @Override
+    public synchronized long getEventCount() {
         return getEventCountFromTable(EVENT_TABLE_NAME);
     }
 
-    synchronized long getIdentifyCount() {
+    @Override
+    public synchronized long getIdentifyCount() {
         return getEventCountFromTable(IDENTIFY_TABLE_NAME);
     }
 
-    synchronized long getTotalEventCount() {
+    @Override
+    public synchronized long getTotalEventCount() {
         return getEventCount() + getIdentifyCount();
     }
 
+    // bytes of event data stored in both tables, including buffered events
+    @Override
+    public synchronized long getTotalEventSize() {
+        return getEventSizeFromTable(EVENT_TABLE_NAME) + getEventSizeFromTable(IDENTIFY_TABLE_NAME);
+    }
+
+    private synchronized long getEventSizeFromTable(String table) {
+        Long size = eventSizes.get(table);
+        if (size != null) {
+            return size;
+        }
+
+        long totalSize = 0;
+        for (PendingEvent pending : pendingEvents) {
+            if (pending.table.equals(table)) {
+                totalSize += pending.size;
+            }
+        }
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            totalSize += getStatement(
+                db, "SELECT COALESCE(SUM(" + SIZE_FIELD + "), 0) FROM " + table
+            ).simpleQueryForLong();
+            eventSizes.put(table, totalSize);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("getEventSize for %s failed", table), e);
+        }
+        return totalSize;
+    }
+
     private synchronized long getEventCountFromTable(String table) {
+        Long count = eventCounts.get(table);
+        if (count != null) {
+            return count;
+        }
+
+        // seed from the table, plus any buffered events that are not in it yet
         long numberRows = 0;
-        SQLiteStatement statement = null;
+        for (PendingEvent pending : pendingEvents) {
+            if (pending.table.equals(table)) {
+                numberRows++;
+            }
+        }
         try {
             SQLiteDatabase db = getReadableDatabase();
-            String query = "SELECT COUNT(*) FROM " + table;
-            statement = db.compileStatement(query);
-            numberRows = statement.simpleQueryForLong();
+            numberRows += getStatement(db, "SELECT COUNT(*) FROM " + table).simpleQueryForLong();
+            eventCounts.put(table, numberRows);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getNumberRows for %s failed", table), e);
-        } finally {
-            if (statement != null) {
-                statement.close();
-            }
-            close();
         }
         return numberRows;
     }
 
-    synchronized long getNthEventId(long n) {
-        return getNthEventIdFromTable(EVENT_TABLE_NAME, n);
+    /*
+        The largest event id, identify id and sequence number stored, or -1 if there are none.
+        The client's copies of these are deferred writes that a killed process can lose after
+        the event itself was committed, so it catches up from the tables on load.
+     */
+    synchronized long getMaxEventId() {
+        return getMaxFromTable(EVENT_TABLE_NAME, ID_FIELD);
+    }
+
+    synchronized long getMaxIdentifyId() {
+        return getMaxFromTable(IDENTIFY_TABLE_NAME, ID_FIELD);
     }
 
-    synchronized long getNthIdentifyId(long n) {
-        return getNthEventIdFromTable(IDENTIFY_TABLE_NAME, n);
+    synchronized long getMaxSequenceNumber() {
+        return Math.max(getMaxFromTable(EVENT_TABLE_NAME, SEQUENCE_NUMBER_FIELD),
+                getMaxFromTable(IDENTIFY_TABLE_NAME, SEQUENCE_NUMBER_FIELD));
     }
 
-    private synchronized long getNthEventIdFromTable(String table, long n) {
-        long nthEventId = -1;
-        SQLiteStatement statement = null;
+    private synchronized long getMaxFromTable(String table, String field) {
+        flushPendingWrites();
         try {
-            SQLiteDatabase db = getReadableDatabase();
-            String query = "SELECT " + ID_FIELD + " FROM " + table + " LIMIT 1 OFFSET "
-                    + (n - 1);
-            statement = db.compileStatement(query);
-            nthEventId = -1;
-            try {
-                nthEventId = statement.simpleQueryForLong();
-            } catch (SQLiteDoneException e) {
-                logger.w(TAG, e);
-            }
+            return DatabaseUtils.longForQuery(getReadableDatabase(),
+                    "SELECT COALESCE(MAX(" + field + "), -1) FROM " + table, null);
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("getNthEventId from %s failed", table), e);
-        } finally {
-            if (statement != null) {
-                statement.close();
-            }
-            close();
+            logger.e(TAG, String.format("getMax %s from %s failed", field, table), e);
+            return -1;
         }
-        return nthEventId;
     }
 
-    synchronized void removeEvents(long maxId) {
+    @Override
+    public synchronized void removeEvents(long maxId) {
         removeEventsFromTable(EVENT_TABLE_NAME, maxId);
     }
 
-    synchronized void removeIdentifys(long maxId) {
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
         removeEventsFromTable(IDENTIFY_TABLE_NAME, maxId);
     }
 
     private synchronized void removeEventsFromTable(String table, long maxId) {
+        flushPendingWrites();
         try {
-            SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " <= " + maxId, null);
+            deleteEventsUpTo(getWritableDatabase(), table, maxId);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvents from %s failed", table), e);
+        }
+    }
+
+    // size of the rows about to be deleted, only needed once the table's size is being tracked
+    private long getRemovedSize(SQLiteDatabase db, String table, String idClause, long id) {
+        if (!eventSizes.containsKey(table)) {
+            return 0;
+        }
+        SQLiteStatement statement = getStatement(db, "SELECT COALESCE(SUM(" + SIZE_FIELD
+                + "), 0) FROM " + table + " WHERE " + ID_FIELD + idClause);
+        statement.bindLong(1, id);
+        return statement.simpleQueryForLong();
+    }
+
+    /*
+        Evicts the oldest events and identifys, in upload order, until the stored event data
+        takes up at most maxSize bytes.
+     */
+    @Override
+    public synchronized void removeOldestEventsToSize(long maxSize) {
+        long excess = getTotalEventSize() - maxSize;
+        if (excess <= 0) {
+            return;
+        }
+        flushPendingWrites();
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            cursor = db.rawQuery(getMergedBatchQuery(SIZE_FIELD, -1, -1, -1), null);
+            while (excess > 0 && cursor.moveToNext()) {
+                if (cursor.getInt(0) == 0) {
+                    maxEventId = cursor.getLong(1);
+                } else {
+                    maxIdentifyId = cursor.getLong(1);
+                }
+                excess -= cursor.getLong(2);
+            }
+            cursor.close();
+            cursor = null;
+
+            if (maxEventId >= 0) {
+                deleteEventsUpTo(db, EVENT_TABLE_NAME, maxEventId);
+            }
+            if (maxIdentifyId >= 0) {
+                deleteEventsUpTo(db, IDENTIFY_TABLE_NAME, maxIdentifyId);
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "removeOldestEventsToSize failed", e);
         } finally {
-            close();
+            if (cursor != null) {
+                cursor.close();
+            }
         }
     }
 
-    synchronized void removeEvent(long id) {
+    @Override
+    public synchronized void removeOldestEvents(long n) {
+        removeOldestEventsFromTable(EVENT_TABLE_NAME, n);
+    }
+
+    @Override
+    public synchronized void removeOldestIdentifys(long n) {
+        removeOldestEventsFromTable(IDENTIFY_TABLE_NAME, n);
+    }
+
+    /*
+        Evicts up to n of the oldest rows with a range delete from the tracked minimum id.
+        Ids can have gaps from single removals or failed inserts, in which case fewer rows go
+        and the minimum is reseeded for the next call.
+     */
+    private synchronized void removeOldestEventsFromTable(String table, long n) {
+        if (n <= 0) {
+            return;
+        }
+        flushPendingWrites();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            Long minId = minEventIds.get(table);
+            if (minId == null) {
+                SQLiteStatement statement = getStatement(
+                    db, "SELECT COALESCE(MIN(" + ID_FIELD + "), -1) FROM " + table
+                );
+                minId = statement.simpleQueryForLong();
+                if (minId < 0) {
+                    return;
+                }
+            }
+            if (deleteEventsUpTo(db, table, minId + n - 1) < n) {
+                minEventIds.remove(table);
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("removeOldestEvents from %s failed", table), e);
+        }
+    }
+
+    private long deleteEventsUpTo(SQLiteDatabase db, String table, long maxId) {
+        long removedSize = getRemovedSize(db, table, " <= ?", maxId);
+        SQLiteStatement statement = getStatement(
+            db, "DELETE FROM " + table + " WHERE " + ID_FIELD + " <= ?"
+        );
+        statement.bindLong(1, maxId);
+        long removed = statement.executeUpdateDelete();
+        updateEventCount(table, -removed, -removedSize);
+        Long minId = minEventIds.get(table);
+        if (minId == null || minId <= maxId) {
+            minEventIds.put(table, maxId + 1);
+        }
+        removeUnusedContexts(db);
+        return removed;
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
         removeEventFromTable(EVENT_TABLE_NAME, id);
     }
 
-    synchronized void removeIdentify(long id) {
+    @Override
+    public synchronized void removeIdentify(long id) {
         removeEventFromTable(IDENTIFY_TABLE_NAME, id);
     }
 
     private synchronized void removeEventFromTable(String table, long id) {
+        flushPendingWrites();
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " = " + id, null);
+            SQLiteStatement statement = getStatement(
+                db, "DELETE FROM " + table + " WHERE " + ID_FIELD + " = ?"
+            );
+            statement.bindLong(1, id);
+            long removedSize = getRemovedSize(db, table, " = ?", id);
+            updateEventCount(table, -statement.executeUpdateDelete(), -removedSize);
+            removeUnusedContexts(db);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvent from %s failed", table), e);
-        } finally {
+        }
+    }
+
+    /*
+        Releases the open database connection when the system is running low on memory or the
+        app has moved into the background LRU list. UI_HIDDEN alone is not worth a reopen.
+        The client forwards the system's callbacks here on its logThread, since close() can
+        wait on disk writes. Skipped if an event read is in flight rather than waiting for it,
+        the next trim callback will try again.
+     */
+    synchronized void trimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ||
+                level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
+        if (!connectionLock.writeLock().tryLock()) {
+            logger.d(TAG, "Not closing database connection, an event read is in progress");
+            return;
+        }
+        try {
+            logger.d(TAG, "Closing database connection on trim memory level " + level);
             close();
+        } finally {
+            connectionLock.writeLock().unlock();
+        }
+    }
+
+    /*
+        Gives free pages back to the file system once the event tables have drained, so the
+        file shrinks after a long offline period instead of staying at its largest size.
+        Does nothing until at least minFreePages are free, and frees at most maxPages per call
+        to keep each run short. Android creates its metadata table as soon as a file is opened,
+        so auto_vacuum cannot be set up front. Instead the file is switched to incremental
+        auto-vacuum with a full VACUUM the first time it has no events left, while the rewrite
+        is cheap. Skipped if an event read is in flight. Returns the number of bytes reclaimed.
+     */
+    synchronized long reclaimFreePages(long minFreePages, long maxPages) {
+        if (!connectionLock.writeLock().tryLock()) {
+            return 0;
+        }
+        try {
+            flushPendingWrites();
+            SQLiteDatabase db = getWritableDatabase();
+            if (getPragma(db, "freelist_count") < minFreePages) {
+                return 0;
+            }
+            long pageSize = getPragma(db, "page_size");
+            long pageCount = getPragma(db, "page_count");
+            if (getPragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+                if (getTotalEventCount() > 0) {
+                    return 0;
+                }
+                clearStatements();
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+            } else {
+                // each row of the pragma's result frees one page, so step through all of them
+                Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+                try {
+                    while (cursor.moveToNext()) {}
+                } finally {
+                    cursor.close();
+                }
+            }
+            long reclaimed = (pageCount - getPragma(db, "page_count")) * pageSize;
+            if (reclaimed > 0) {
+                reclaimedBytes += reclaimed;
+                logger.d(TAG, "Reclaimed " + reclaimed + " bytes of free database pages");
+            }
+            return Math.max(reclaimed, 0);
+        } catch (SQLiteException e) {
+            logger.e(TAG, "reclaimFreePages failed", e);
+            return 0;
+        } finally {
+            connectionLock.writeLock().unlock();
+        }
+    }
+
+    synchronized long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    private static long getPragma(SQLiteDatabase db, String pragma) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + pragma, null);
+    }
+
+    /*
+        Returns the cached compiled statement for the sql, compiling it on first use. The cache
+        belongs to a single connection and is dropped whenever a different one is handed out.
+        Callers must hold the helper's lock and bind every parameter before executing.
+     */
+    private SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        if (db != statementDb) {
+            clearStatements();
+            statementDb = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private void clearStatements() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        statementDb = null;
+    }
+
+    private long executeInsert(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = getStatement(db, sql);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null) {
+                statement.bindNull(i + 1);
+            } else if (args[i] instanceof Long) {
+                statement.bindLong(i + 1, (Long) args[i]);
+            } else if (args[i] instanceof byte[]) {
+                statement.bindBlob(i + 1, (byte[]) args[i]);
+            } else {
+                statement.bindString(i + 1, (String) args[i]);
+            }
+        }
+        return statement.executeInsert();
+    }
+
+    /*
+        Like SQLiteDatabase.insert, a failed event insert (including a missing table) is
+        logged and reported as -1 instead of thrown.
+     */
+    private long insertEvent(SQLiteDatabase db, String sql, Object... args) {
+        try {
+            return executeInsert(db, sql, args);
+        } catch (SQLException e) {
+            logger.e(TAG, "Error inserting with " + sql, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        // wait for in-flight reads, new ones cannot start while we hold the helper's lock
+        connectionLock.writeLock().lock();
+        try {
+            flushPendingWrites();
+            clearStatements();
+            // another process may write while we are closed, reseed ids and counts on reopen
+            lastReservedIds.clear();
+            eventCounts.clear();
+            minEventIds.clear();
+            eventSizes.clear();
+            contextIds.clear();
+            super.close();
+        } finally {
+            connectionLock.writeLock().unlock();
         }
     }
 
     private void delete() {
+        // buffered events cannot outlive the file they were reserved against, but deferred
+        // metadata is carried over so the sequence number does not restart
+        pendingEvents.clear();
+        lastReservedIds.clear();
+        eventCounts.clear();
+        minEventIds.clear();
+        eventSizes.clear();
+        contextIds.clear();
+        Map<String, Long> longValues = pendingLongValues;
+        pendingLongValues = new LinkedHashMap<String, Long>();
         try {
             close();
             file.delete();
         } catch (SecurityException e) {
             logger.e(TAG, "delete failed", e);
+        } finally {
+            pendingLongValues = longValues;
+        }
+    }
+
+    private static class PendingEvent {
+        final String table;
+        final long id;
+        final Object event; // json string, or an encoded blob
+        final Long sequenceNumber;
+        final long size;
+        final Long contextId;
+
+        PendingEvent(String table, long id, Object event, Long sequenceNumber, Long contextId) {
+            this.table = table;
+            this.id = id;
+            this.event = event;
+            this.sequenceNumber = sequenceNumber;
+            this.size = getStoredSize(event);
+            this.contextId = contextId;
         }
     }
 
@@ -392,6 +1578,10 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
     }
 
+    Cursor rawQueryDb(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        return db.rawQuery(sql, selectionArgs);
+    }
+
     /*
         Checks if the RuntimeException is an android.database.CursorWindowAllocationException.
         If it is, then wrap the message in Amplitude's CursorWindowAllocationException so the
@@ -0,0 +1,356 @@
+package com.amplitude.api;
+
+import android.text.TextUtils;
+
+import java.util.Arrays;
+
+/**
+ *  <h1>Event</h1>
+ *  An immutable event with typed properties, built with an {@link Event.Builder}, for example:
+ *  {@code Event event = new Event.Builder("Button Clicked").putString("button", "buy")
+ *  .putLong("count", 3).build();}
+ *  <br><br>
+ *  Log it with {@code Amplitude.getInstance().logEvent(event);}. Unlike the {@code JSONObject}
+ *  properties of the other {@code logEvent} methods, an Event cannot change after it is built,
+ *  so it is handed to the SDK's background thread as it is, without a copy. The properties are
+ *  kept in flat arrays of primitive values, with nothing boxed, and written straight into the
+ *  event's json. The same Event may be logged more than once.
+ */
+public class Event {
+
+    /**
+     * The class identifier tag used in logging. TAG = {@code "com.amplitude.api.Event";}
+     */
+    public static final String TAG = "com.amplitude.api.Event";
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    static final byte STRING = 0;
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte BOOLEAN = 3;
+
+    final String eventType;
+    final long timestamp;
+    final boolean outOfSession;
+
+    // property i is keys[i], of type types[i], with its value in strings[i] for strings and
+    // in numbers[i] otherwise: the long, the double's bits, or 1 and 0 for booleans
+    private final int propertyCount;
+    private final String[] keys;
+    private final byte[] types;
+    private final long[] numbers;
+    private final String[] strings;
+
+    private final int groupCount;
+    private final String[] groupTypes;
+    private final String[] groupNames;
+
+    private Event(Builder builder) {
+        eventType = builder.eventType;
+        timestamp = builder.timestamp;
+        outOfSession = builder.outOfSession;
+        propertyCount = builder.propertyCount;
+        keys = Arrays.copyOf(builder.keys, propertyCount);
+        types = Arrays.copyOf(builder.types, propertyCount);
+        numbers = Arrays.copyOf(builder.numbers, propertyCount);
+        strings = Arrays.copyOf(builder.strings, propertyCount);
+        groupCount = builder.groupCount;
+        groupTypes = Arrays.copyOf(builder.groupTypes, groupCount);
+        groupNames = Arrays.copyOf(builder.groupNames, groupCount);
+    }
+
+    /**
+     * @return the event type
+     */
+    public String getEventType() {
+        return eventType;
+    }
+
+    /**
+     * Writes the event properties as a json object, with the same string truncation and
+     * property limits as JSONObject properties. Like those, more than MAX_PROPERTY_KEYS
+     * properties are written as an empty object.
+     */
+    void writeProperties(EventWriter writer) {
+        writer.beginObject();
+        if (tooManyKeys(propertyCount)) {
+            writer.endObject();
+            return;
+        }
+        for (int i = 0; i < propertyCount && writer.propertyKey(keys[i]); i++) {
+            switch (types[i]) {
+                case LONG:
+                    writer.value(numbers[i]);
+                    break;
+                case DOUBLE:
+                    writer.value(Double.longBitsToDouble(numbers[i]));
+                    break;
+                case BOOLEAN:
+                    writer.value(numbers[i] != 0);
+                    break;
+                default:
+                    writer.propertyString(keys[i], strings[i]);
+                    break;
+            }
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes the groups as a json object of group type to group name.
+     */
+    void writeGroups(EventWriter writer) {
+        writer.beginObject();
+        if (tooManyKeys(groupCount)) {
+            writer.endObject();
+            return;
+        }
+        for (int i = 0; i < groupCount && writer.propertyKey(groupTypes[i]); i++) {
+            writer.propertyString(groupTypes[i], groupNames[i]);
+        }
+        writer.endObject();
+    }
+
+    private static boolean tooManyKeys(int count) {
+        if (count > Constants.MAX_PROPERTY_KEYS) {
+            logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Builds an {@link Event}. Each put method adds a property, or replaces the value of a
+     * property already added with the same key, and returns the same Builder. Properties with
+     * a null key, and doubles that are NaN or infinite, are ignored. A Builder is not thread
+     * safe, but the Events it builds are, and it can go on to build more.
+     */
+    public static class Builder {
+
+        private static final int INITIAL_CAPACITY = 8;
+        // past this many properties, duplicate keys are found through a hash table instead
+        // of a scan, so building a large event stays linear
+        private static final int INDEX_THRESHOLD = 8;
+
+        private final String eventType;
+        private long timestamp = 0;
+        private boolean outOfSession = false;
+
+        private int propertyCount = 0;
+        private String[] keys = new String[INITIAL_CAPACITY];
+        private byte[] types = new byte[INITIAL_CAPACITY];
+        private long[] numbers = new long[INITIAL_CAPACITY];
+        private String[] strings = new String[INITIAL_CAPACITY];
+        // open addressing table of property index + 1 by key hash, 0 for an empty slot, kept
+        // at twice the capacity of the arrays so it is at most half full
+        private int[] keyTable;
+
+        private int groupCount = 0;
+        private String[] groupTypes = new String[0];
+        private String[] groupNames = new String[0];
+
+        /**
+         * Starts an event of the given type.
+         *
+         * @param eventType the event type
+         */
+        public Builder(String eventType) {
+            this.eventType = eventType;
+        }
+
+        /**
+         * Adds a string property. Strings longer than 1024 characters are truncated when the
+         * event is logged. A null value is sent as json null.
+         *
+         * @param key   the property key
+         * @param value the property value
+         * @return the same Builder
+         */
+        public Builder putString(String key, String value) {
+            int i = getIndex(key);
+            if (i >= 0) {
+                types[i] = STRING;
+                strings[i] = value;
+                numbers[i] = 0;
+            }
+            return this;
+        }
+
+        /**
+         * Adds a long property.
+         *
+         * @param key   the property key
+         * @param value the property value
+         * @return the same Builder
+         */
+        public Builder putLong(String key, long value) {
+            return putNumber(key, LONG, value);
+        }
+
+        /**
+         * Adds an int property.
+         *
+         * @param key   the property key
+         * @param value the property value
+         * @return the same Builder
+         */
+        public Builder putInt(String key, int value) {
+            return putNumber(key, LONG, value);
+        }
+
+        /**
+         * Adds a double property. NaN and infinite values cannot be sent as json and are
+         * ignored.
+         *
+         * @param key   the property key
+         * @param value the property value
+         * @return the same Builder
+         */
+        public Builder putDouble(String key, double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                logger.w(TAG, String.format(
+                    "Ignoring property %s, %s is not a valid json number", key, value
+                ));
+                return this;
+            }
+            return putNumber(key, DOUBLE, Double.doubleToRawLongBits(value));
+        }
+
+        /**
+         * Adds a boolean property.
+         *
+         * @param key   the property key
+         * @param value the property value
+         * @return the same Builder
+         */
+        public Builder putBoolean(String key, boolean value) {
+            return putNumber(key, BOOLEAN, value ? 1 : 0);
+        }
+
+        /**
+         * Puts the event in a group for this event only, see {@code AmplitudeClient.setGroup}
+         * to put the user in a group. Replaces the group name if the group type was already
+         * added.
+         *
+         * @param groupType the group type
+         * @param groupName the group name
+         * @return the same Builder
+         */
+        public Builder setGroup(String groupType, String groupName) {
+            if (TextUtils.isEmpty(groupType)) {
+                logger.w(TAG, "Attempting to set a group with a null or empty group type");
+                return this;
+            }
+            for (int i = 0; i < groupCount; i++) {
+                if (groupTypes[i].equals(groupType)) {
+                    groupNames[i] = groupName;
+                    return this;
+                }
+            }
+            if (groupCount == groupTypes.length) {
+                int capacity = Math.max(2, groupCount * 2);
+                groupTypes = Arrays.copyOf(groupTypes, capacity);
+                groupNames = Arrays.copyOf(groupNames, capacity);
+            }
+            groupTypes[groupCount] = groupType;
+            groupNames[groupCount] = groupName;
+            groupCount++;
+            return this;
+        }
+
+        /**
+         * Sets the time of the event in milliseconds since epoch. Defaults to the time the
+         * event is logged.
+         *
+         * @param timestamp the timestamp in milliseconds since epoch
+         * @return the same Builder
+         */
+        public Builder setTimestamp(long timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        /**
+         * Logs the event outside of the user's session, see {@code logEvent} for details.
+         *
+         * @param outOfSession whether the event is out of session
+         * @return the same Builder
+         */
+        public Builder setOutOfSession(boolean outOfSession) {
+            this.outOfSession = outOfSession;
+            return this;
+        }
+
+        /**
+         * @return a new Event with the properties added so far
+         */
+        public Event build() {
+            return new Event(this);
+        }
+
+        private Builder putNumber(String key, byte type, long value) {
+            int i = getIndex(key);
+            if (i >= 0) {
+                types[i] = type;
+                numbers[i] = value;
+                strings[i] = null;
+            }
+            return this;
+        }
+
+        // index of the property with the key, added if it is new, or -1 for a null key
+        private int getIndex(String key) {
+            if (key == null) {
+                logger.w(TAG, "Attempting to add a property with a null key, ignoring");
+                return -1;
+            }
+            if (keyTable != null) {
+                int slot = getSlot(key);
+                if (keyTable[slot] != 0) {
+                    return keyTable[slot] - 1;
+                }
+            } else {
+                for (int i = 0; i < propertyCount; i++) {
+                    if (keys[i].equals(key)) {
+                        return i;
+                    }
+                }
+            }
+            if (propertyCount == keys.length) {
+                int capacity = propertyCount * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                types = Arrays.copyOf(types, capacity);
+                numbers = Arrays.copyOf(numbers, capacity);
+                strings = Arrays.copyOf(strings, capacity);
+            }
+            keys[propertyCount++] = key;
+            if (propertyCount > INDEX_THRESHOLD) {
+                if (keyTable == null || keyTable.length < 2 * keys.length) {
+                    indexKeys();
+                } else {
+                    keyTable[getSlot(key)] = propertyCount;
+                }
+            }
+            return propertyCount - 1;
+        }
+
+        // the slot holding the key, or the empty slot where it would go
+        private int getSlot(String key) {
+            int mask = keyTable.length - 1;
+            int hash = key.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keyTable[slot] != 0 && !keys[keyTable[slot] - 1].equals(key)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void indexKeys() {
+            keyTable = new int[2 * keys.length];
+            for (int i = 0; i < propertyCount; i++) {
+                keyTable[getSlot(keys[i])] = i + 1;
+            }
+        }
+    }
+}
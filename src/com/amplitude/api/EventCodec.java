@@ -0,0 +1,93 @@
+package com.amplitude.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses stored events with deflate and a preset dictionary of the fields every event
+ * shares, so even a single short row compresses well. The first byte of each encoded row is
+ * the codec version. The dictionary for a version must never change once released, or rows
+ * already on disk can no longer be read; add a new version instead.
+ */
+class EventCodec {
+
+    private static final String TAG = "com.amplitude.api.EventCodec";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    static final byte VERSION_1 = 1;
+
+    // most frequent substrings last, deflate favors the closest matches
+    private static final byte[] DICTIONARY_V1 = Utils.toUtf8(
+        "\"groups\":{},\"user_properties\":{},\"event_properties\":{},"
+        + "\"api_properties\":{\"limit_ad_tracking\":false,\"gps_enabled\":true,"
+        + "\"androidADID\":\"\",\"location\":{\"lat\":,\"lng\":}},"
+        + "\"library\":{\"name\":\"amplitude-android\",\"version\":\"2.\"},"
+        + "\"sequence_number\":,\"uuid\":\"-\",\"platform\":\"Android\","
+        + "\"language\":\"en\",\"country\":\"US\",\"carrier\":\"\",\"device_model\":\"\","
+        + "\"device_manufacturer\":\"\",\"device_brand\":\"\",\"os_version\":\"\","
+        + "\"os_name\":\"android\",\"version_name\":\"\",\"session_id\":,\"device_id\":\"\","
+        + "\"user_id\":null,\"timestamp\":,\"event_type\":\"$identify\",\"event_type\":\""
+    );
+
+    private EventCodec() {}
+
+    static byte[] encode(String event) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setDictionary(DICTIONARY_V1);
+            deflater.setInput(Utils.toUtf8(event));
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(event.length() / 4 + 16);
+            out.write(VERSION_1);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /*
+        Returns the event json, or null if the row was written by an unknown codec version or
+        is corrupt.
+     */
+    static String decode(byte[] row) {
+        if (row == null || row.length == 0 || row[0] != VERSION_1) {
+            logger.e(TAG, "Unknown event codec version");
+            return null;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(row, 1, row.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(row.length * 4);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY_V1);
+                    } else if (inflater.needsInput()) {
+                        logger.e(TAG, "Truncated event row");
+                        return null;
+                    }
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } catch (DataFormatException e) {
+            logger.e(TAG, "Corrupt event row", e);
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
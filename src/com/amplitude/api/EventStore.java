@@ -0,0 +1,175 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+/**
+ *  <h1>EventStore</h1>
+ *  Storage for unsent events and identifys and for the SDK's key/value metadata, such as the
+ *  device id and the last event time. By default the SDK uses its SQLite database. An
+ *  {@link InMemoryEventStore} keeps nothing on disk and suits short lived processes and
+ *  benchmarks, a {@link FileEventStore} persists to an append-only file and a
+ *  {@link SegmentedEventStore} to memory mapped segment files.
+ *  <br><br>
+ *  Pass a store to {@code AmplitudeClient.setEventStore()} before initializing the client.
+ *  Implementations must be thread safe, events are added and removed from different threads.
+ *  <br><br>
+ *  Events and identifys are stored as json object strings. Each has its own ids, which start
+ *  at 1 and only ever increase. An event may come with a context, a json object string of the
+ *  device and library fields, which is shared by many events and is merged back into the event
+ *  when it is read.
+ */
+public interface EventStore {
+
+    /**
+     * Stores an event.
+     *
+     * @param event          the event json
+     * @param sequenceNumber the event's sequence number, or null if it has none
+     * @param context        the event's context json, or null
+     * @return the id of the stored event, or -1 if it could not be stored
+     */
+    long addEvent(String event, Long sequenceNumber, String context);
+
+    /**
+     * Stores an identify event.
+     *
+     * @param identifyEvent  the identify json
+     * @param sequenceNumber the identify's sequence number, or null if it has none
+     * @param context        the identify's context json, or null
+     * @return the id of the stored identify, or -1 if it could not be stored
+     */
+    long addIdentify(String identifyEvent, Long sequenceNumber, String context);
+
+    /**
+     * @return the number of stored events
+     */
+    long getEventCount();
+
+    /**
+     * @return the number of stored identifys
+     */
+    long getIdentifyCount();
+
+    /**
+     * @return the number of stored events and identifys
+     */
+    long getTotalEventCount();
+
+    /**
+     * @return the size in bytes of the stored events and identifys, not counting contexts
+     */
+    long getTotalEventSize();
+
+    /**
+     * Reads the oldest events and identifys as a single upload batch, merged by sequence
+     * number with those that have none first. Each event has its context merged in and its
+     * id added as {@code event_id}.
+     *
+     * @param upToEventId    the max event id to include, or -1 for no limit
+     * @param upToIdentifyId the max identify id to include, or -1 for no limit
+     * @param limit          the max number of events and identifys, or -1 for no limit
+     * @return the max event id and max identify id in the batch, -1 if there are none, and the
+     *         batch as a json array string
+     */
+    Pair<Pair<Long, Long>, String> getEventsAndIdentifys(
+            long upToEventId, long upToIdentifyId, long limit);
+
+    /**
+     * Removes the events with ids up to and including maxId.
+     *
+     * @param maxId the max id to remove
+     */
+    void removeEvents(long maxId);
+
+    /**
+     * Removes the identifys with ids up to and including maxId.
+     *
+     * @param maxId the max id to remove
+     */
+    void removeIdentifys(long maxId);
+
+    /**
+     * Removes a single event.
+     *
+     * @param id the id of the event
+     */
+    void removeEvent(long id);
+
+    /**
+     * Removes a single identify.
+     *
+     * @param id the id of the identify
+     */
+    void removeIdentify(long id);
+
+    /**
+     * Removes up to n of the oldest events.
+     *
+     * @param n the number of events to remove
+     */
+    void removeOldestEvents(long n);
+
+    /**
+     * Removes up to n of the oldest identifys.
+     *
+     * @param n the number of identifys to remove
+     */
+    void removeOldestIdentifys(long n);
+
+    /**
+     * Removes the oldest events and identifys, in upload order, until the total event size is
+     * at most maxSize bytes.
+     *
+     * @param maxSize the size to shrink to
+     */
+    void removeOldestEventsToSize(long maxSize);
+
+    /**
+     * @param key the key
+     * @return the string value for the key, or null if there is none
+     */
+    String getValue(String key);
+
+    /**
+     * Stores a string value, or removes it if the value is null.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return -1 if the value could not be stored
+     */
+    long insertOrReplaceKeyValue(String key, String value);
+
+    /**
+     * @param key the key
+     * @return the long value for the key, or null if there is none
+     */
+    Long getLongValue(String key);
+
+    /**
+     * Stores a long value, or removes it if the value is null.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return -1 if the value could not be stored
+     */
+    long insertOrReplaceKeyLongValue(String key, Long value);
+
+    /**
+     * Stores a long value that may be written out later, along with the next event or on
+     * {@link #flushPendingWrites()}. {@link #getLongValue(String)} returns it immediately.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    void insertOrReplaceKeyLongValueDeferred(String key, long value);
+
+    /**
+     * @return true if there are events or values that have not been written out yet
+     */
+    boolean hasPendingWrites();
+
+    /**
+     * Writes out any buffered events and values.
+     */
+    void flushPendingWrites();
+}
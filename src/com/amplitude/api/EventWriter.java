@@ -0,0 +1,336 @@
+package com.amplitude.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Writes an event's json straight into a reusable buffer, instead of building a JSONObject
+ * tree for it and serializing that. Numbers are written without boxing and property objects
+ * are streamed member by member. The output matches JSONObject.toString(). Not thread safe,
+ * each client keeps one for use on its logThread.
+ */
+class EventWriter {
+
+    private static final String TAG = "com.amplitude.api.EventWriter";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    // buffers grown past this by an unusually large event are not kept for the next one
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private StringBuilder out = new StringBuilder(INITIAL_CAPACITY);
+    private boolean needsComma = false;
+
+    // work budget for the property values of the current event, see truncatedValue()
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxValues = Integer.MAX_VALUE;
+    private int maxLength = Integer.MAX_VALUE;
+    private int valueCount = 0;
+    private boolean limitExceeded = false;
+
+    /**
+     * Clears the buffer and the property budget for a new event.
+     */
+    EventWriter reset() {
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            out = new StringBuilder(INITIAL_CAPACITY);
+        } else {
+            out.setLength(0);
+        }
+        needsComma = false;
+        valueCount = 0;
+        limitExceeded = false;
+        return this;
+    }
+
+    /**
+     * Limits the property values written with truncatedValue() for the current event: how
+     * deep objects and arrays may nest, how many values may be written in all, and how long
+     * the event may get, in characters. Values beyond a limit are dropped.
+     */
+    EventWriter setPropertyLimits(int maxDepth, int maxValues, int maxLength) {
+        this.maxDepth = maxDepth;
+        this.maxValues = maxValues;
+        this.maxLength = maxLength;
+        return this;
+    }
+
+    /**
+     * @return true if values were dropped from the current event's properties for going over
+     * one of the property limits
+     */
+    boolean isPropertyLimitExceeded() {
+        return limitExceeded;
+    }
+
+    EventWriter beginObject() {
+        out.append('{');
+        needsComma = false;
+        return this;
+    }
+
+    EventWriter endObject() {
+        out.append('}');
+        needsComma = true;
+        return this;
+    }
+
+    EventWriter key(String name) {
+        if (needsComma) {
+            out.append(',');
+        }
+        string(name);
+        out.append(':');
+        needsComma = true;
+        return this;
+    }
+
+    EventWriter value(long value) {
+        out.append(value);
+        return this;
+    }
+
+    EventWriter value(boolean value) {
+        out.append(value);
+        return this;
+    }
+
+    EventWriter value(double value) {
+        // the same as JSONObject.numberToString() for the finite values json allows
+        long longValue = (long) value;
+        if (value == longValue) {
+            out.append(longValue);
+        } else {
+            out.append(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a string, number, boolean, JSONObject, JSONArray or null value, the same way
+     * JSONObject.toString() would.
+     */
+    EventWriter value(Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            out.append("null");
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof Long || value instanceof Integer) {
+            out.append(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            out.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            out.append(((Boolean) value).booleanValue());
+        } else if (value instanceof JSONObject) {
+            beginObject();
+            members((JSONObject) value, null);
+            endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                value(array.opt(i));
+            }
+            out.append(']');
+        } else {
+            string(value.toString());
+        }
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes the members of object into the current object, leaving out the keys in skip.
+     */
+    EventWriter members(JSONObject object, String[] skip) throws JSONException {
+        Iterator<?> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (skip == null || !contains(skip, key)) {
+                key(key).value(object.opt(key));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a property value with the same limits AmplitudeClient.truncate() applies, in the
+     * same pass: strings are cut to MAX_STRING_LENGTH characters, except for the revenue
+     * receipt fields, and objects with more than MAX_PROPERTY_KEYS keys are written empty.
+     * Unlike truncate(), the value is left as it is and each node is only visited once.
+     * <br><br>
+     * The property limits are enforced along the way, so a pathological payload costs no
+     * more than the budget. Objects and arrays nested deeper than the max depth are left out,
+     * and once the event has used up its values or length, the remaining members and
+     * elements are left out. The output is valid json either way.
+     */
+    EventWriter truncatedValue(Object value) throws JSONException {
+        return truncatedValue(value, 1);
+    }
+
+    private EventWriter truncatedValue(Object value, int depth) throws JSONException {
+        valueCount++;
+        if (value instanceof String) {
+            string((String) value, Constants.MAX_STRING_LENGTH);
+            needsComma = true;
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            beginObject();
+            if (object.length() > Constants.MAX_PROPERTY_KEYS) {
+                logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
+            } else {
+                Iterator<?> keys = object.keys();
+                while (keys.hasNext() && hasBudget()) {
+                    String key = (String) keys.next();
+                    Object member = object.opt(key);
+                    if (isTooDeep(member, depth)) {
+                        continue;
+                    }
+                    key(key);
+                    // only receipt strings are exempt from truncation, anything else under
+                    // a receipt key is held to the same limits as other values
+                    if (isReceipt(key) && member instanceof String) {
+                        valueCount++;
+                        value(member);
+                    } else {
+                        truncatedValue(member, depth + 1);
+                    }
+                }
+            }
+            endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            boolean first = true;
+            for (int i = 0; i < array.length() && hasBudget(); i++) {
+                Object element = array.opt(i);
+                if (isTooDeep(element, depth)) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                truncatedValue(element, depth + 1);
+            }
+            out.append(']');
+            needsComma = true;
+        } else {
+            value(value);
+        }
+        return this;
+    }
+
+    /**
+     * Starts a property member written from a typed value rather than from a JSONObject, see
+     * Event. Counts against the property limits like any other value. Returns false, without
+     * writing anything, once the event's budget is used up.
+     */
+    boolean propertyKey(String key) {
+        if (!hasBudget()) {
+            return false;
+        }
+        valueCount++;
+        key(key);
+        return true;
+    }
+
+    /**
+     * Writes a string property value, truncated unless key is one of the receipt fields.
+     */
+    EventWriter propertyString(String key, String value) {
+        if (value == null) {
+            out.append("null");
+        } else {
+            string(value, isReceipt(key) ? Integer.MAX_VALUE : Constants.MAX_STRING_LENGTH);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    // revenue receipts are never truncated
+    private static boolean isReceipt(String key) {
+        return key.equals(Constants.AMP_REVENUE_RECEIPT) ||
+                key.equals(Constants.AMP_REVENUE_RECEIPT_SIG);
+    }
+
+    private boolean hasBudget() {
+        if (valueCount >= maxValues || out.length() >= maxLength) {
+            limitExceeded = true;
+            return false;
+        }
+        return true;
+    }
+
+    // whether value is an object or array nested inside one at the max depth
+    private boolean isTooDeep(Object value, int depth) {
+        if (depth >= maxDepth && (value instanceof JSONObject || value instanceof JSONArray)) {
+            limitExceeded = true;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean contains(String[] keys, String key) {
+        for (String k : keys) {
+            if (k != null && k.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void string(String value) {
+        string(value, Integer.MAX_VALUE);
+    }
+
+    // same escaping as org.json's JSONStringer, of at most the first maxLength characters
+    private void string(String value, int maxLength) {
+        out.append('"');
+        int length = Math.min(value.length(), maxLength);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
@@ -0,0 +1,495 @@
+package com.amplitude.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ *  <h1>FileEventStore</h1>
+ *  An {@link EventStore} that persists to a single append-only journal file. Every change is
+ *  appended to the file as a record, and the file is read back into memory when the store is
+ *  first used. Once most of the journal is taken up by events that have since been removed, it
+ *  is compacted by writing the live events and values to a new file.
+ *  <br><br>
+ *  Records are handed to the OS as they are written but not synced to disk, so a crash of the
+ *  app loses nothing while a power loss can lose the latest changes. A record that was only
+ *  partly written is dropped when the journal is read back. All events are held in memory, so
+ *  keep {@code setEventMaxCount} at a sensible value.
+ */
+public class FileEventStore extends InMemoryEventStore {
+
+    private static final String TAG = "com.amplitude.api.FileEventStore";
+
+    private static final byte RECORD_EVENT = 1;
+    private static final byte RECORD_REMOVE_UP_TO = 2;
+    private static final byte RECORD_REMOVE = 3;
+    private static final byte RECORD_VALUE = 4;
+    private static final byte RECORD_LONG_VALUE = 5;
+    private static final byte RECORD_CONTEXT = 6;
+    private static final byte RECORD_NEXT_ID = 7;
+
+    // record header: payload length and crc32
+    private static final int HEADER_SIZE = 8;
+    private static final long COMPACT_MIN_BYTES = 256 * 1024;
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private final File file;
+    private FileOutputStream out;
+    private boolean opened;
+    private long journalSize;
+    // journal size at the last failed compaction, the next try waits until it has doubled
+    private long failedCompactionSize = -1;
+
+    // contexts already written to the journal, events refer to them by id
+    private Map<String, Integer> journalContexts = new HashMap<String, Integer>();
+
+    // deferred long values, written along with the next record or on flushPendingWrites
+    private Map<String, Long> pendingLongValues = new LinkedHashMap<String, Long>();
+
+    // the record being built, and the finished records waiting to be written with one write
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(payload);
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream records = new DataOutputStream(buffer);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Creates a store that keeps its journal in the given file, for example
+     * {@code new File(context.getFilesDir(), "amplitude-events")}. The file is created when
+     * the store is first used, and read then if it already exists.
+     *
+     * @param file the journal file
+     */
+    public FileEventStore(File file) {
+        this.file = file;
+    }
+
+    @Override
+    void open() {
+        if (opened) {
+            return;
+        }
+        opened = true;
+        if (file.exists()) {
+            readJournal();
+        }
+        openJournal();
+    }
+
+    @Override
+    void putEvent(StoredEvent event) {
+        super.putEvent(event);
+        try {
+            bufferEvent(event);
+            bufferPendingLongValues();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to encode event", e);
+        }
+        writeRecords();
+    }
+
+    @Override
+    void removeEventsUpTo(int type, long maxId) {
+        super.removeEventsUpTo(type, maxId);
+        try {
+            record.writeByte(RECORD_REMOVE_UP_TO);
+            record.writeByte(type);
+            record.writeLong(maxId);
+            endRecord();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to encode event removal", e);
+        }
+        writeRecords();
+        compactIfNeeded();
+    }
+
+    @Override
+    void removeEventById(int type, long id) {
+        super.removeEventById(type, id);
+        try {
+            record.writeByte(RECORD_REMOVE);
+            record.writeByte(type);
+            record.writeLong(id);
+            endRecord();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to encode event removal", e);
+        }
+        writeRecords();
+        compactIfNeeded();
+    }
+
+    @Override
+    void putValue(String key, String value) {
+        super.putValue(key, value);
+        try {
+            bufferValue(key, value);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to encode value", e);
+        }
+        writeRecords();
+        compactIfNeeded();
+    }
+
+    @Override
+    void putLongValue(String key, Long value) {
+        super.putLongValue(key, value);
+        pendingLongValues.remove(key);
+        try {
+            bufferLongValue(key, value);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to encode value", e);
+        }
+        writeRecords();
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void insertOrReplaceKeyLongValueDeferred(String key, long value) {
+        open();
+        super.putLongValue(key, value);
+        pendingLongValues.put(key, value);
+    }
+
+    @Override
+    public synchronized boolean hasPendingWrites() {
+        return !pendingLongValues.isEmpty();
+    }
+
+    @Override
+    public synchronized void flushPendingWrites() {
+        if (pendingLongValues.isEmpty()) {
+            return;
+        }
+        try {
+            bufferPendingLongValues();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to encode value", e);
+        }
+        writeRecords();
+        compactIfNeeded();
+    }
+
+    /*
+        Each record is written to the payload stream and finished with endRecord(), which adds
+        it to the buffer behind its length and checksum.
+     */
+
+    private void bufferEvent(StoredEvent event) throws IOException {
+        int contextId = -1;
+        if (event.context != null) {
+            Integer journalContextId = journalContexts.get(event.context);
+            if (journalContextId == null) {
+                journalContextId = journalContexts.size();
+                journalContexts.put(event.context, journalContextId);
+                record.writeByte(RECORD_CONTEXT);
+                record.writeInt(journalContextId);
+                writeString(event.context);
+                endRecord();
+            }
+            contextId = journalContextId;
+        }
+        record.writeByte(RECORD_EVENT);
+        record.writeByte(event.type);
+        record.writeLong(event.id);
+        record.writeBoolean(event.sequenceNumber != null);
+        record.writeLong(event.sequenceNumber != null ? event.sequenceNumber : 0);
+        record.writeInt(contextId);
+        writeString(event.event);
+        endRecord();
+    }
+
+    private void bufferValue(String key, String value) throws IOException {
+        record.writeByte(RECORD_VALUE);
+        writeString(key);
+        writeString(value);
+        endRecord();
+    }
+
+    private void bufferLongValue(String key, Long value) throws IOException {
+        record.writeByte(RECORD_LONG_VALUE);
+        writeString(key);
+        record.writeBoolean(value != null);
+        record.writeLong(value != null ? value : 0);
+        endRecord();
+    }
+
+    private void bufferPendingLongValues() throws IOException {
+        for (Map.Entry<String, Long> entry : pendingLongValues.entrySet()) {
+            bufferLongValue(entry.getKey(), entry.getValue());
+        }
+        pendingLongValues.clear();
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            record.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        record.writeInt(bytes.length);
+        record.write(bytes);
+    }
+
+    private void endRecord() throws IOException {
+        crc.reset();
+        crc.update(payload.toByteArray());
+        records.writeInt(payload.size());
+        records.writeInt((int) crc.getValue());
+        payload.writeTo(records);
+        payload.reset();
+    }
+
+    // appends the buffered records to the journal, they are dropped if that fails
+    private void writeRecords() {
+        if (buffer.size() == 0) {
+            return;
+        }
+        if (out == null) {
+            openJournal();
+        }
+        try {
+            if (out != null) {
+                writeBuffer(out);
+            }
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to write to the event journal", e);
+            closeJournal();
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    private void writeBuffer(OutputStream stream) throws IOException {
+        buffer.writeTo(stream);
+        stream.flush();
+        journalSize += buffer.size();
+        buffer.reset();
+    }
+
+    private void openJournal() {
+        try {
+            out = new FileOutputStream(file, true);
+            journalSize = file.length();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to open the event journal", e);
+            out = null;
+        }
+    }
+
+    private void closeJournal() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.w(TAG, e);
+            }
+            out = null;
+        }
+    }
+
+    /*
+        Replays the journal into memory. Reading stops at the first record that is incomplete
+        or does not match its checksum, which is cut off so new records follow the last good one.
+     */
+    private void readJournal() {
+        Map<Integer, String> contexts = new HashMap<Integer, String>();
+        long fileLength = file.length();
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (validLength + HEADER_SIZE <= fileLength) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 1 || validLength + HEADER_SIZE + length > fileLength) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                crc.reset();
+                crc.update(bytes);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                applyRecord(new DataInputStream(new ByteArrayInputStream(bytes)), contexts);
+                validLength += HEADER_SIZE + length;
+            }
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to read the event journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.w(TAG, e);
+                }
+            }
+        }
+
+        if (validLength < fileLength) {
+            logger.w(TAG, "Dropping incomplete records at the end of the event journal");
+            truncateJournal(validLength);
+        }
+        for (Map.Entry<Integer, String> entry : contexts.entrySet()) {
+            journalContexts.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    // applies a record to memory only, through the superclass so it is not journaled again
+    private void applyRecord(DataInputStream in, Map<Integer, String> contexts)
+            throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case RECORD_EVENT:
+                int table = in.readByte();
+                long id = in.readLong();
+                boolean hasSequenceNumber = in.readBoolean();
+                long sequenceNumber = in.readLong();
+                int contextId = in.readInt();
+                String event = readString(in);
+                super.putEvent(new StoredEvent(
+                    table, id, event, hasSequenceNumber ? sequenceNumber : null,
+                    contextId >= 0 ? internContext(contexts.get(contextId)) : null
+                ));
+                break;
+            case RECORD_REMOVE_UP_TO:
+                super.removeEventsUpTo(in.readByte(), in.readLong());
+                break;
+            case RECORD_REMOVE:
+                super.removeEventById(in.readByte(), in.readLong());
+                break;
+            case RECORD_VALUE:
+                String key = readString(in);
+                super.putValue(key, readString(in));
+                break;
+            case RECORD_LONG_VALUE:
+                String longKey = readString(in);
+                boolean hasValue = in.readBoolean();
+                long value = in.readLong();
+                super.putLongValue(longKey, hasValue ? value : null);
+                break;
+            case RECORD_CONTEXT:
+                int journalContextId = in.readInt();
+                contexts.put(journalContextId, readString(in));
+                break;
+            case RECORD_NEXT_ID:
+                int nextIdType = in.readByte();
+                setNextId(nextIdType, in.readLong());
+                break;
+            default:
+                logger.w(TAG, String.format("Skipping unknown event journal record %d", type));
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void truncateJournal(long length) {
+        RandomAccessFile journal = null;
+        try {
+            journal = new RandomAccessFile(file, "rw");
+            journal.setLength(length);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to truncate the event journal", e);
+        } finally {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    logger.w(TAG, e);
+                }
+            }
+        }
+    }
+
+    /*
+        Rewrites the journal once it has grown well past the live events, which is usually
+        right after an upload has emptied the store, or once replaced values have piled up.
+        The new journal is written next to the old one and renamed over it, so a failure part
+        way leaves the old journal in place. After a failure the journal is not compacted again
+        until it has doubled, rather than on every write.
+     */
+    private void compactIfNeeded() {
+        if (journalSize < COMPACT_MIN_BYTES ||
+                (getTotalEventCount() > 0 && journalSize < 4 * getTotalEventSize()) ||
+                (failedCompactionSize >= 0 && journalSize < 2 * failedCompactionSize)) {
+            return;
+        }
+
+        closeJournal();
+        Map<String, Integer> oldJournalContexts = journalContexts;
+        journalContexts = new HashMap<String, Integer>();
+        File compacted = new File(file.getPath() + ".tmp");
+        FileOutputStream snapshot = null;
+        try {
+            snapshot = new FileOutputStream(compacted);
+            writeSnapshot(snapshot);
+            snapshot.close();
+            snapshot = null;
+            if (!compacted.renameTo(file)) {
+                throw new IOException("Failed to replace the event journal");
+            }
+            pendingLongValues.clear();
+            failedCompactionSize = -1;
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to compact the event journal", e);
+            failedCompactionSize = journalSize;
+            buffer.reset();
+            journalContexts = oldJournalContexts;
+            if (snapshot != null) {
+                try {
+                    snapshot.close();
+                } catch (IOException closeException) {
+                    logger.w(TAG, closeException);
+                }
+            }
+            compacted.delete();
+        }
+        openJournal();
+    }
+
+    private void writeSnapshot(OutputStream snapshot) throws IOException {
+        for (int type = EVENTS; type <= IDENTIFYS; type++) {
+            record.writeByte(RECORD_NEXT_ID);
+            record.writeByte(type);
+            record.writeLong(getNextId(type));
+            endRecord();
+        }
+        for (Map.Entry<String, String> entry : getValues().entrySet()) {
+            bufferValue(entry.getKey(), entry.getValue());
+        }
+        // includes the deferred values, which are in memory already
+        for (Map.Entry<String, Long> entry : getLongValues().entrySet()) {
+            bufferLongValue(entry.getKey(), entry.getValue());
+        }
+        writeBuffer(snapshot);
+
+        // written out one at a time so the buffer stays small
+        for (int type = EVENTS; type <= IDENTIFYS; type++) {
+            for (StoredEvent event : getStoredEvents(type)) {
+                bufferEvent(event);
+                writeBuffer(snapshot);
+            }
+        }
+    }
+}
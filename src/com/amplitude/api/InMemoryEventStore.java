@@ -0,0 +1,410 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ *  <h1>InMemoryEventStore</h1>
+ *  An {@link EventStore} that keeps everything in memory. Nothing outlives the process, so
+ *  events that have not been uploaded by the time it exits are lost, along with the device id
+ *  and the other values the SDK stores. Meant for short lived processes, for tests and for
+ *  measuring the SDK without the cost of persistence.
+ */
+public class InMemoryEventStore implements EventStore {
+
+    private static final String TAG = "com.amplitude.api.InMemoryEventStore";
+
+    static final int EVENTS = 0;
+    static final int IDENTIFYS = 1;
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private static final Comparator<StoredEvent> UPLOAD_ORDER = new Comparator<StoredEvent>() {
+        @Override
+        public int compare(StoredEvent a, StoredEvent b) {
+            return compareUploadOrder(
+                a.sequenceNumber, a.type, a.id, b.sequenceNumber, b.type, b.id
+            );
+        }
+    };
+
+    // events without a sequence number first, then by sequence number, events before identifys
+    static int compareUploadOrder(Long sequenceNumberA, int typeA, long idA,
+                                  Long sequenceNumberB, int typeB, long idB) {
+        if (sequenceNumberA == null || sequenceNumberB == null) {
+            if (sequenceNumberA != sequenceNumberB) {
+                return sequenceNumberA == null ? -1 : 1;
+            }
+        } else if (!sequenceNumberA.equals(sequenceNumberB)) {
+            return sequenceNumberA < sequenceNumberB ? -1 : 1;
+        }
+        if (typeA != typeB) {
+            return typeA < typeB ? -1 : 1;
+        }
+        return idA < idB ? -1 : (idA == idB ? 0 : 1);
+    }
+
+    /*
+        Merges the events and identifys into upload order as it goes, so a batch read only
+        visits the rows it takes. Both are iterated in id order, which is already their upload
+        order since ids and sequence numbers are both handed out in the order events are logged.
+     */
+    static class UploadOrderIterator<T> implements Iterator<T> {
+        private final Iterator<T> events;
+        private final Iterator<T> identifys;
+        private final Comparator<T> order;
+        private T nextEvent;
+        private T nextIdentify;
+
+        UploadOrderIterator(Iterator<T> events, Iterator<T> identifys, Comparator<T> order) {
+            this.events = events;
+            this.identifys = identifys;
+            this.order = order;
+            nextEvent = events.hasNext() ? events.next() : null;
+            nextIdentify = identifys.hasNext() ? identifys.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextEvent != null || nextIdentify != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T next;
+            if (nextIdentify == null ||
+                    (nextEvent != null && order.compare(nextEvent, nextIdentify) <= 0)) {
+                next = nextEvent;
+                nextEvent = events.hasNext() ? events.next() : null;
+            } else {
+                next = nextIdentify;
+                nextIdentify = identifys.hasNext() ? identifys.next() : null;
+            }
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    static class StoredEvent {
+        final int type;
+        final long id;
+        final String event;
+        final Long sequenceNumber;
+        final String context;
+        final long size;
+
+        StoredEvent(int type, long id, String event, Long sequenceNumber, String context) {
+            this.type = type;
+            this.id = id;
+            this.event = event;
+            this.sequenceNumber = sequenceNumber;
+            this.context = context;
+            this.size = DatabaseHelper.getEventSize(event);
+        }
+    }
+
+    private final TreeMap<Long, StoredEvent> events = new TreeMap<Long, StoredEvent>();
+    private final TreeMap<Long, StoredEvent> identifys = new TreeMap<Long, StoredEvent>();
+    private final long[] nextIds = {1, 1};
+    private long totalSize;
+
+    // events share the context strings, most have the same one
+    private final Map<String, String> contexts = new HashMap<String, String>();
+
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final Map<String, Long> longValues = new HashMap<String, Long>();
+
+    @Override
+    public synchronized long addEvent(String event, Long sequenceNumber, String context) {
+        return addEventToTable(EVENTS, event, sequenceNumber, context);
+    }
+
+    @Override
+    public synchronized long addIdentify(
+            String identifyEvent, Long sequenceNumber, String context) {
+        return addEventToTable(IDENTIFYS, identifyEvent, sequenceNumber, context);
+    }
+
+    private long addEventToTable(int type, String event, Long sequenceNumber, String context) {
+        open();
+        StoredEvent stored = new StoredEvent(
+            type, nextIds[type], event, sequenceNumber, internContext(context)
+        );
+        putEvent(stored);
+        return stored.id;
+    }
+
+    String internContext(String context) {
+        if (context == null) {
+            return null;
+        }
+        String interned = contexts.get(context);
+        if (interned == null) {
+            contexts.put(context, context);
+            interned = context;
+        }
+        return interned;
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        open();
+        return events.size();
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        open();
+        return identifys.size();
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        open();
+        return events.size() + identifys.size();
+    }
+
+    @Override
+    public synchronized long getTotalEventSize() {
+        open();
+        return totalSize;
+    }
+
+    @Override
+    public synchronized Pair<Pair<Long, Long>, String> getEventsAndIdentifys(
+            long upToEventId, long upToIdentifyId, long limit) {
+        open();
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        StringBuilder batch = new StringBuilder("[");
+        Iterator<StoredEvent> rows = getUploadOrder(upToEventId, upToIdentifyId);
+        for (long i = 0; (limit < 0 || i < limit) && rows.hasNext(); i++) {
+            StoredEvent row = rows.next();
+            if (!DatabaseHelper.appendEventWithId(batch, row.event, row.id, row.context)) {
+                logger.w(TAG, String.format("Skipping malformed event %d", row.id));
+            }
+            if (row.type == EVENTS) {
+                maxEventId = row.id;
+            } else {
+                maxIdentifyId = row.id;
+            }
+        }
+        return new Pair<Pair<Long, Long>, String>(
+                new Pair<Long, Long>(maxEventId, maxIdentifyId), batch.append(']').toString());
+    }
+
+    private Iterator<StoredEvent> getUploadOrder(long upToEventId, long upToIdentifyId) {
+        return new UploadOrderIterator<StoredEvent>(
+            (upToEventId >= 0 ?
+                events.headMap(upToEventId, true).values() : events.values()).iterator(),
+            (upToIdentifyId >= 0 ?
+                identifys.headMap(upToIdentifyId, true).values() : identifys.values()).iterator(),
+            UPLOAD_ORDER
+        );
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        open();
+        removeEventsUpTo(EVENTS, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
+        open();
+        removeEventsUpTo(IDENTIFYS, maxId);
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        open();
+        removeEventById(EVENTS, id);
+    }
+
+    @Override
+    public synchronized void removeIdentify(long id) {
+        open();
+        removeEventById(IDENTIFYS, id);
+    }
+
+    @Override
+    public synchronized void removeOldestEvents(long n) {
+        open();
+        removeOldestEventsFromTable(EVENTS, n);
+    }
+
+    @Override
+    public synchronized void removeOldestIdentifys(long n) {
+        open();
+        removeOldestEventsFromTable(IDENTIFYS, n);
+    }
+
+    private void removeOldestEventsFromTable(int type, long n) {
+        long maxId = -1;
+        Iterator<Long> ids = getTable(type).keySet().iterator();
+        for (long i = 0; i < n && ids.hasNext(); i++) {
+            maxId = ids.next();
+        }
+        if (maxId >= 0) {
+            removeEventsUpTo(type, maxId);
+        }
+    }
+
+    @Override
+    public synchronized void removeOldestEventsToSize(long maxSize) {
+        open();
+        long excess = totalSize - maxSize;
+        if (excess <= 0) {
+            return;
+        }
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        Iterator<StoredEvent> rows = getUploadOrder(-1, -1);
+        while (excess > 0 && rows.hasNext()) {
+            StoredEvent row = rows.next();
+            if (row.type == EVENTS) {
+                maxEventId = row.id;
+            } else {
+                maxIdentifyId = row.id;
+            }
+            excess -= row.size;
+        }
+        if (maxEventId >= 0) {
+            removeEventsUpTo(EVENTS, maxEventId);
+        }
+        if (maxIdentifyId >= 0) {
+            removeEventsUpTo(IDENTIFYS, maxIdentifyId);
+        }
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        open();
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        open();
+        putValue(key, value);
+        return 1;
+    }
+
+    @Override
+    public synchronized Long getLongValue(String key) {
+        open();
+        return longValues.get(key);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        open();
+        putLongValue(key, value);
+        return 1;
+    }
+
+    @Override
+    public synchronized void insertOrReplaceKeyLongValueDeferred(String key, long value) {
+        insertOrReplaceKeyLongValue(key, value);
+    }
+
+    @Override
+    public synchronized boolean hasPendingWrites() {
+        return false;
+    }
+
+    @Override
+    public synchronized void flushPendingWrites() {}
+
+    /*
+        The methods below hold the store's state and are called with the lock held. Subclasses
+        that persist the store override them to record each change, and call open() to load
+        the store on first use.
+     */
+
+    void open() {}
+
+    void putEvent(StoredEvent event) {
+        getTable(event.type).put(event.id, event);
+        totalSize += event.size;
+        nextIds[event.type] = Math.max(nextIds[event.type], event.id + 1);
+    }
+
+    void removeEventsUpTo(int type, long maxId) {
+        Map<Long, StoredEvent> removed = getTable(type).headMap(maxId, true);
+        for (StoredEvent event : removed.values()) {
+            totalSize -= event.size;
+        }
+        removed.clear();
+        removeUnusedContexts();
+    }
+
+    void removeEventById(int type, long id) {
+        StoredEvent removed = getTable(type).remove(id);
+        if (removed != null) {
+            totalSize -= removed.size;
+            removeUnusedContexts();
+        }
+    }
+
+    // like the database, contexts are only dropped once there are no events left at all
+    private void removeUnusedContexts() {
+        if (events.isEmpty() && identifys.isEmpty()) {
+            contexts.clear();
+        }
+    }
+
+    void putValue(String key, String value) {
+        if (value == null) {
+            values.remove(key);
+        } else {
+            values.put(key, value);
+        }
+    }
+
+    void putLongValue(String key, Long value) {
+        if (value == null) {
+            longValues.remove(key);
+        } else {
+            longValues.put(key, value);
+        }
+    }
+
+    void setNextId(int type, long nextId) {
+        nextIds[type] = Math.max(nextIds[type], nextId);
+    }
+
+    long getNextId(int type) {
+        return nextIds[type];
+    }
+
+    Collection<StoredEvent> getStoredEvents(int type) {
+        return getTable(type).values();
+    }
+
+    Map<String, String> getValues() {
+        return values;
+    }
+
+    Map<String, Long> getLongValues() {
+        return longValues;
+    }
+
+    private TreeMap<Long, StoredEvent> getTable(int type) {
+        return type == EVENTS ? events : identifys;
+    }
+}
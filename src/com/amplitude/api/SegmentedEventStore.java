@@ -0,0 +1,720 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ *  <h1>SegmentedEventStore</h1>
+ *  An {@link EventStore} that appends events to memory mapped segment files, one series of
+ *  segments for events and one for identifys. Logging an event is a write into the mapped
+ *  segment, with no index to maintain on disk, and a segment is deleted as a whole once all
+ *  of its events have been uploaded. Only the position of each event in its segment is kept
+ *  in memory, the event and its fields are read back from the segment when they are needed.
+ *  <br><br>
+ *  The SDK's other values are kept in a {@link FileEventStore} journal in the same directory.
+ *  Writes to a mapped segment reach the OS straight away, so a crash of the app loses nothing,
+ *  while a power loss can lose the latest events. Each segment takes up its full size on disk
+ *  and in address space until it is deleted, and the mapping of a deleted segment is only
+ *  released once the garbage collector frees its buffer, as Android has no public way to unmap
+ *  one sooner.
+ */
+public class SegmentedEventStore implements EventStore {
+
+    private static final String TAG = "com.amplitude.api.SegmentedEventStore";
+
+    static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+    private static final String[] SEGMENT_PREFIXES = {"events-", "identifys-"};
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String METADATA_FILE = "metadata";
+
+    // metadata keys: every id up to this one has been removed, and single removed ids above it
+    private static final String[] REMOVED_UP_TO_KEYS = {
+        "segments_events_removed_up_to", "segments_identifys_removed_up_to"
+    };
+    private static final String[] REMOVED_KEY_PREFIXES = {
+        "segments_events_removed_id_", "segments_identifys_removed_id_"
+    };
+
+    private static final byte RECORD_EVENT = 1;
+    private static final byte RECORD_CONTEXT = 2;
+
+    // record header: payload length, written last so a partly written record reads as the
+    // end of the segment, and crc32
+    private static final int HEADER_SIZE = 8;
+    // kind, id, has sequence number, sequence number and context index ahead of the event
+    private static final int EVENT_FIELDS_SIZE = 1 + 8 + 1 + 8 + 4;
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private static final Comparator<Entry> UPLOAD_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return InMemoryEventStore.compareUploadOrder(
+                a.sequenceNumber, a.type, a.id, b.sequenceNumber, b.type, b.id
+            );
+        }
+    };
+
+    /*
+        A segment file and the offsets of its event records, in id order. The ids and other
+        fields of the events are read from the records, so the segment's first and last ids
+        are those of its first and last records. Records removed by id are marked in removed,
+        those removed by range are covered by the store's watermark instead.
+     */
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int end;
+        int liveCount;
+        final List<String> contexts = new ArrayList<String>();
+        final Map<String, Integer> contextIndexes = new HashMap<String, Integer>();
+        int[] offsets = new int[16];
+        int count;
+        final BitSet removed = new BitSet();
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        void addRecord(int payload) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = payload;
+        }
+
+        long getId(int index) {
+            return buffer.getLong(offsets[index] + 1);
+        }
+
+        // the size of an event is the length of its utf-8 bytes
+        int getSize(int index) {
+            return buffer.getInt(offsets[index] - HEADER_SIZE) - EVENT_FIELDS_SIZE;
+        }
+
+        // index of the first record with an id above the given one, or count if there is none
+        int indexAbove(long id) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (getId(middle) <= id) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        Entry getEntry(int type, int index) {
+            int payload = offsets[index];
+            Long sequenceNumber = buffer.get(payload + 9) != 0 ?
+                    buffer.getLong(payload + 10) : null;
+            return new Entry(type, getId(index), sequenceNumber, this,
+                    payload + EVENT_FIELDS_SIZE, getSize(index), buffer.getInt(payload + 18));
+        }
+    }
+
+    // a stored event, read from its record when it is listed and dropped once it is used
+    private static class Entry {
+        final int type;
+        final long id;
+        final Long sequenceNumber;
+        final Segment segment;
+        final int offset;
+        final int size;
+        final int contextIndex;
+
+        Entry(int type, long id, Long sequenceNumber, Segment segment, int offset, int size,
+              int contextIndex) {
+            this.type = type;
+            this.id = id;
+            this.sequenceNumber = sequenceNumber;
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.contextIndex = contextIndex;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private FileEventStore metadata;
+    private boolean opened;
+
+    private final List<List<Segment>> segments = new ArrayList<List<Segment>>();
+    private final long[] counts = {0, 0};
+    private final long[] nextIds = {1, 1};
+    private final long[] removedUpTo = {0, 0};
+    private long totalSize;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Creates a store that keeps its segments in the given directory, for example
+     * {@code new File(context.getFilesDir(), "amplitude-segments")}. The directory is created
+     * when the store is first used, and read then if it already exists.
+     *
+     * @param directory the directory for the segment files
+     */
+    public SegmentedEventStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    SegmentedEventStore(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        for (int type = InMemoryEventStore.EVENTS; type <= InMemoryEventStore.IDENTIFYS; type++) {
+            segments.add(new ArrayList<Segment>());
+        }
+    }
+
+    private void open() {
+        if (opened) {
+            return;
+        }
+        opened = true;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.e(TAG, "Failed to create the event segment directory");
+        }
+        metadata = new FileEventStore(new File(directory, METADATA_FILE));
+        for (int type = InMemoryEventStore.EVENTS; type <= InMemoryEventStore.IDENTIFYS; type++) {
+            Long removed = metadata.getLongValue(REMOVED_UP_TO_KEYS[type]);
+            removedUpTo[type] = removed != null ? removed : 0;
+            nextIds[type] = removedUpTo[type] + 1;
+            loadSegments(type);
+        }
+    }
+
+    /*
+        Maps the existing segments in id order and indexes the events in them that have not
+        been removed. Reading a segment stops at the first record that is incomplete or does
+        not match its checksum, new events then go to a new segment.
+     */
+    private void loadSegments(int type) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        TreeMap<Long, File> ordered = new TreeMap<Long, File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIXES[type]) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ordered.put(Long.parseLong(name.substring(SEGMENT_PREFIXES[type].length(),
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.w(TAG, String.format("Ignoring unknown file %s", name));
+                }
+            }
+        }
+
+        Map<String, Long> removedIds = metadata.getLongValues();
+        for (File file : ordered.values()) {
+            Segment segment;
+            try {
+                segment = mapSegment(file, (int) file.length());
+            } catch (IOException e) {
+                logger.e(TAG, String.format("Failed to map segment %s", file.getName()), e);
+                continue;
+            }
+            boolean complete = readSegment(type, segment, removedIds);
+            segments.get(type).add(segment);
+            if (segment.liveCount == 0) {
+                deleteSegment(type, segment);
+            } else if (!complete) {
+                // appending after a damaged record would hide the records that follow
+                segment.end = segment.buffer.capacity();
+            }
+        }
+    }
+
+    private boolean readSegment(int type, Segment segment, Map<String, Long> removedIds) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                segment.end = offset;
+                return true;
+            }
+            if (length < 0 || length > buffer.capacity() - offset - HEADER_SIZE ||
+                    buffer.getInt(offset + 4) != checksum(buffer, offset + HEADER_SIZE, length)) {
+                segment.end = offset;
+                return false;
+            }
+
+            int payload = offset + HEADER_SIZE;
+            if (buffer.get(payload) == RECORD_CONTEXT) {
+                String context = readString(buffer, payload + 5, length - 5);
+                segment.contextIndexes.put(context, segment.contexts.size());
+                segment.contexts.add(context);
+            } else {
+                long id = buffer.getLong(payload + 1);
+                nextIds[type] = Math.max(nextIds[type], id + 1);
+                segment.addRecord(payload);
+                if (id > removedUpTo[type] &&
+                        !removedIds.containsKey(REMOVED_KEY_PREFIXES[type] + id)) {
+                    addLive(type, segment, segment.count - 1);
+                } else {
+                    segment.removed.set(segment.count - 1);
+                }
+            }
+            offset = payload + length;
+        }
+        segment.end = offset;
+        return true;
+    }
+
+    @Override
+    public synchronized long addEvent(String event, Long sequenceNumber, String context) {
+        return addEventToSegment(InMemoryEventStore.EVENTS, event, sequenceNumber, context);
+    }
+
+    @Override
+    public synchronized long addIdentify(
+            String identifyEvent, Long sequenceNumber, String context) {
+        return addEventToSegment(
+            InMemoryEventStore.IDENTIFYS, identifyEvent, sequenceNumber, context
+        );
+    }
+
+    private long addEventToSegment(int type, String event, Long sequenceNumber, String context) {
+        open();
+        long id = nextIds[type];
+        byte[] eventBytes = Utils.toUtf8(event);
+        byte[] contextBytes = context != null ? Utils.toUtf8(context) : null;
+        int eventRecordSize = HEADER_SIZE + EVENT_FIELDS_SIZE + eventBytes.length;
+        int contextRecordSize = contextBytes != null ? HEADER_SIZE + 5 + contextBytes.length : 0;
+
+        List<Segment> typeSegments = segments.get(type);
+        Segment segment = typeSegments.isEmpty() ? null :
+                typeSegments.get(typeSegments.size() - 1);
+        int recordSize = eventRecordSize;
+        if (segment != null && context != null && !segment.contextIndexes.containsKey(context)) {
+            recordSize += contextRecordSize;
+        }
+        // leave room for the terminating zero length
+        if (segment == null || segment.end + recordSize + HEADER_SIZE > segment.buffer.capacity()) {
+            File file = new File(directory, SEGMENT_PREFIXES[type] + id + SEGMENT_SUFFIX);
+            try {
+                segment = mapSegment(file, Math.max(
+                    segmentSize, eventRecordSize + contextRecordSize + HEADER_SIZE
+                ));
+            } catch (IOException e) {
+                logger.e(TAG, "Failed to create an event segment", e);
+                return -1;
+            }
+            typeSegments.add(segment);
+        }
+
+        int contextIndex = -1;
+        if (context != null) {
+            Integer index = segment.contextIndexes.get(context);
+            if (index == null) {
+                index = segment.contexts.size();
+                ByteBuffer record = ByteBuffer.allocate(5 + contextBytes.length);
+                record.put(RECORD_CONTEXT).putInt(index).put(contextBytes);
+                writeRecord(segment, record.array());
+                segment.contextIndexes.put(context, index);
+                segment.contexts.add(context);
+            }
+            contextIndex = index;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(EVENT_FIELDS_SIZE + eventBytes.length);
+        record.put(RECORD_EVENT).putLong(id).put((byte) (sequenceNumber != null ? 1 : 0))
+            .putLong(sequenceNumber != null ? sequenceNumber : 0).putInt(contextIndex)
+            .put(eventBytes);
+        segment.addRecord(writeRecord(segment, record.array()));
+        nextIds[type] = id + 1;
+        addLive(type, segment, segment.count - 1);
+        return id;
+    }
+
+    // returns the offset of the payload
+    private int writeRecord(Segment segment, byte[] payload) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = segment.end;
+        crc.reset();
+        crc.update(payload);
+        buffer.position(offset + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.putInt(offset, payload.length);
+        segment.end = offset + HEADER_SIZE + payload.length;
+        return offset + HEADER_SIZE;
+    }
+
+    private void addLive(int type, Segment segment, int index) {
+        segment.liveCount++;
+        counts[type]++;
+        totalSize += segment.getSize(index);
+    }
+
+    private void removeLive(int type, Segment segment, int index) {
+        segment.removed.set(index);
+        segment.liveCount--;
+        counts[type]--;
+        totalSize -= segment.getSize(index);
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        open();
+        return counts[InMemoryEventStore.EVENTS];
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        open();
+        return counts[InMemoryEventStore.IDENTIFYS];
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        open();
+        return getEventCount() + getIdentifyCount();
+    }
+
+    @Override
+    public synchronized long getTotalEventSize() {
+        open();
+        return totalSize;
+    }
+
+    @Override
+    public synchronized Pair<Pair<Long, Long>, String> getEventsAndIdentifys(
+            long upToEventId, long upToIdentifyId, long limit) {
+        open();
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        StringBuilder batch = new StringBuilder("[");
+        Iterator<Entry> rows = getUploadOrder(upToEventId, upToIdentifyId);
+        for (long i = 0; (limit < 0 || i < limit) && rows.hasNext(); i++) {
+            Entry row = rows.next();
+            String event = readString(row.segment.buffer, row.offset, row.size);
+            String context = row.contextIndex >= 0 ?
+                    row.segment.contexts.get(row.contextIndex) : null;
+            if (!DatabaseHelper.appendEventWithId(batch, event, row.id, context)) {
+                logger.w(TAG, String.format("Skipping malformed event %d", row.id));
+            }
+            if (row.type == InMemoryEventStore.EVENTS) {
+                maxEventId = row.id;
+            } else {
+                maxIdentifyId = row.id;
+            }
+        }
+        return new Pair<Pair<Long, Long>, String>(
+                new Pair<Long, Long>(maxEventId, maxIdentifyId), batch.append(']').toString());
+    }
+
+    // merged lazily, a batch read or eviction pass only visits the entries it takes
+    private Iterator<Entry> getUploadOrder(long upToEventId, long upToIdentifyId) {
+        return new InMemoryEventStore.UploadOrderIterator<Entry>(
+            new EntryIterator(InMemoryEventStore.EVENTS, upToEventId),
+            new EntryIterator(InMemoryEventStore.IDENTIFYS, upToIdentifyId),
+            UPLOAD_ORDER
+        );
+    }
+
+    /*
+        Lists the events of one type that have not been removed, in id order and up to maxId
+        unless it is negative, by scanning the offsets of each segment. The store must not
+        change while the iterator is in use.
+     */
+    private class EntryIterator implements Iterator<Entry> {
+        private final int type;
+        private final long maxId;
+        private int segmentIndex = 0;
+        private int index = -1;
+        private Entry next;
+
+        EntryIterator(int type, long maxId) {
+            this.type = type;
+            this.maxId = maxId;
+            next = advance();
+        }
+
+        private Entry advance() {
+            List<Segment> typeSegments = segments.get(type);
+            for (; segmentIndex < typeSegments.size(); segmentIndex++, index = -1) {
+                Segment segment = typeSegments.get(segmentIndex);
+                if (index < 0) {
+                    index = segment.indexAbove(removedUpTo[type]) - 1;
+                }
+                while (++index < segment.count) {
+                    if (maxId >= 0 && segment.getId(index) > maxId) {
+                        return null;
+                    }
+                    if (!segment.removed.get(index)) {
+                        return segment.getEntry(type, index);
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = next;
+            next = advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        open();
+        removeEventsUpTo(InMemoryEventStore.EVENTS, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
+        open();
+        removeEventsUpTo(InMemoryEventStore.IDENTIFYS, maxId);
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        open();
+        removeEventById(InMemoryEventStore.EVENTS, id);
+    }
+
+    @Override
+    public synchronized void removeIdentify(long id) {
+        open();
+        removeEventById(InMemoryEventStore.IDENTIFYS, id);
+    }
+
+    @Override
+    public synchronized void removeOldestEvents(long n) {
+        open();
+        removeOldestEventsFromSegments(InMemoryEventStore.EVENTS, n);
+    }
+
+    @Override
+    public synchronized void removeOldestIdentifys(long n) {
+        open();
+        removeOldestEventsFromSegments(InMemoryEventStore.IDENTIFYS, n);
+    }
+
+    private void removeOldestEventsFromSegments(int type, long n) {
+        long maxId = -1;
+        Iterator<Entry> rows = new EntryIterator(type, -1);
+        for (long i = 0; i < n && rows.hasNext(); i++) {
+            maxId = rows.next().id;
+        }
+        if (maxId >= 0) {
+            removeEventsUpTo(type, maxId);
+        }
+    }
+
+    @Override
+    public synchronized void removeOldestEventsToSize(long maxSize) {
+        open();
+        long excess = totalSize - maxSize;
+        if (excess <= 0) {
+            return;
+        }
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        Iterator<Entry> rows = getUploadOrder(-1, -1);
+        while (excess > 0 && rows.hasNext()) {
+            Entry row = rows.next();
+            if (row.type == InMemoryEventStore.EVENTS) {
+                maxEventId = row.id;
+            } else {
+                maxIdentifyId = row.id;
+            }
+            excess -= row.size;
+        }
+        if (maxEventId >= 0) {
+            removeEventsUpTo(InMemoryEventStore.EVENTS, maxEventId);
+        }
+        if (maxIdentifyId >= 0) {
+            removeEventsUpTo(InMemoryEventStore.IDENTIFYS, maxIdentifyId);
+        }
+    }
+
+    /*
+        Range removals only move the persisted watermark forward, and the segments left with
+        no events are deleted. Removed ids above the watermark are persisted one by one until
+        the watermark passes them.
+     */
+    private void removeEventsUpTo(int type, long maxId) {
+        if (maxId <= removedUpTo[type]) {
+            return;
+        }
+        for (Segment segment : segments.get(type)) {
+            for (int i = segment.indexAbove(removedUpTo[type]); i < segment.count
+                    && segment.getId(i) <= maxId; i++) {
+                if (!segment.removed.get(i)) {
+                    removeLive(type, segment, i);
+                }
+            }
+        }
+
+        removedUpTo[type] = maxId;
+        metadata.insertOrReplaceKeyLongValue(REMOVED_UP_TO_KEYS[type], maxId);
+        List<String> passed = new ArrayList<String>();
+        for (String key : metadata.getLongValues().keySet()) {
+            if (key.startsWith(REMOVED_KEY_PREFIXES[type]) &&
+                    metadata.getLongValues().get(key) <= maxId) {
+                passed.add(key);
+            }
+        }
+        for (String key : passed) {
+            metadata.insertOrReplaceKeyLongValue(key, null);
+        }
+        deleteEmptySegments(type);
+    }
+
+    private void removeEventById(int type, long id) {
+        if (id <= removedUpTo[type]) {
+            return;
+        }
+        Segment segment = null;
+        int index = -1;
+        for (Segment candidate : segments.get(type)) {
+            index = candidate.indexAbove(id - 1);
+            if (index < candidate.count && candidate.getId(index) == id) {
+                segment = candidate;
+                break;
+            }
+        }
+        if (segment == null || segment.removed.get(index)) {
+            return;
+        }
+        removeLive(type, segment, index);
+        Iterator<Entry> rows = new EntryIterator(type, -1);
+        Entry first = rows.hasNext() ? rows.next() : null;
+        if (first == null || first.id > id) {
+            removeEventsUpTo(type, first == null ? nextIds[type] - 1 : first.id - 1);
+        } else {
+            metadata.insertOrReplaceKeyLongValue(REMOVED_KEY_PREFIXES[type] + id, id);
+        }
+        deleteEmptySegments(type);
+    }
+
+    private void deleteEmptySegments(int type) {
+        List<Segment> typeSegments = new ArrayList<Segment>(segments.get(type));
+        for (Segment segment : typeSegments) {
+            if (segment.liveCount == 0) {
+                deleteSegment(type, segment);
+            }
+        }
+    }
+
+    // the mapping itself is only released once the buffer is garbage collected
+    private void deleteSegment(int type, Segment segment) {
+        segments.get(type).remove(segment);
+        if (!segment.file.delete()) {
+            logger.w(TAG, String.format("Failed to delete segment %s", segment.file.getName()));
+        }
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        open();
+        return metadata.getValue(key);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        open();
+        return metadata.insertOrReplaceKeyValue(key, value);
+    }
+
+    @Override
+    public synchronized Long getLongValue(String key) {
+        open();
+        return metadata.getLongValue(key);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        open();
+        return metadata.insertOrReplaceKeyLongValue(key, value);
+    }
+
+    @Override
+    public synchronized void insertOrReplaceKeyLongValueDeferred(String key, long value) {
+        open();
+        metadata.insertOrReplaceKeyLongValueDeferred(key, value);
+    }
+
+    @Override
+    public synchronized boolean hasPendingWrites() {
+        return opened && metadata.hasPendingWrites();
+    }
+
+    @Override
+    public synchronized void flushPendingWrites() {
+        if (opened) {
+            metadata.flushPendingWrites();
+        }
+    }
+
+    private static Segment mapSegment(File file, int size) throws IOException {
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the file is closed
+            return new Segment(
+                file, segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size)
+            );
+        } finally {
+            segmentFile.close();
+        }
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        crc.reset();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return Utils.fromUtf8(bytes);
+    }
+}
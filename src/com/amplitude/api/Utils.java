@@ -1,10 +1,14 @@
 package com.amplitude.api;
 
+import android.text.TextUtils;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
+import java.util.Locale;
 
 /**
  * Created by danieljih on 4/18/16.
@@ -88,4 +92,85 @@ public class Utils {
         } catch (JSONException e) {}
         return false;
     }
+
+    /**
+     * Maps an instance name to its key, null and blank names to the default instance.
+     * Names are case insensitive.
+     */
+    static String normalizeInstanceName(String instance) {
+        if (TextUtils.isEmpty(instance)) {
+            instance = Constants.DEFAULT_INSTANCE;
+        }
+        return instance.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Encodes the fields as an application/x-www-form-urlencoded body, straight from the utf-8
+     * bytes of each value. Uses the same escaping as URLEncoder, sized in one pass and written
+     * in a second, without building any intermediate strings.
+     */
+    static byte[] encodeFormBody(String[] names, byte[][] values) {
+        int length = names.length - 1;
+        for (int i = 0; i < names.length; i++) {
+            length += names[i].length() + 1 + getFormEncodedLength(values[i]);
+        }
+
+        byte[] body = new byte[length];
+        int position = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                body[position++] = '&';
+            }
+            // names are plain ascii
+            for (int j = 0; j < names[i].length(); j++) {
+                body[position++] = (byte) names[i].charAt(j);
+            }
+            body[position++] = '=';
+            for (byte b : values[i]) {
+                if (isFormSafe(b)) {
+                    body[position++] = b;
+                } else if (b == ' ') {
+                    body[position++] = '+';
+                } else {
+                    body[position++] = '%';
+                    body[position++] = (byte) HEX_DIGITS[(b >> 4) & 0xF];
+                    body[position++] = (byte) HEX_DIGITS[b & 0xF];
+                }
+            }
+        }
+        return body;
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static int getFormEncodedLength(byte[] value) {
+        int length = 0;
+        for (byte b : value) {
+            length += isFormSafe(b) || b == ' ' ? 1 : 3;
+        }
+        return length;
+    }
+
+    private static boolean isFormSafe(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') ||
+                b == '-' || b == '_' || b == '.' || b == '*';
+    }
+
+    static byte[] toUtf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String fromUtf8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
 }
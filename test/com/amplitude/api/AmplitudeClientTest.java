@@ -1,7 +1,11 @@
 package com.amplitude.api;
 
+import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -16,6 +20,7 @@ import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLooper;
 
+import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
@@ -28,7 +33,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -343,6 +350,44 @@ public class AmplitudeClientTest extends BaseTest {
         assertNotNull(request);
     }
 
+    @Test
+    public void testDatabaseOptionsAppliedOnLogThread() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        SQLiteDatabase db = DatabaseHelper.getDatabaseHelper(context).getWritableDatabase();
+
+        // reopening the database with the new options waits for logThread
+        amplitude.enableDatabaseWriteAheadLogging(true);
+        assertTrue(db.isOpen());
+        looper.runToEndOfTasks();
+        assertFalse(db.isOpen());
+    }
+
+    @Test
+    public void testLogEventWithCompression() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.enableEventCompression(true);
+        JSONObject properties = new JSONObject().put("key", "value");
+        amplitude.logEvent("test_event_1", properties);
+        looper.runToEndOfTasks();
+        amplitude.enableEventCompression(false);
+        amplitude.logEvent("test_event_2", properties);
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // compressed and plain rows upload the same way
+        JSONArray events = getEventsFromRequest(runRequest(amplitude));
+        assertEquals(events.length(), 2);
+        for (int i = 0; i < 2; i++) {
+            JSONObject event = events.getJSONObject(i);
+            assertEquals(event.getString("event_type"), "test_event_" + (i + 1));
+            assertEquals(event.getLong("event_id"), i + 1);
+            assertTrue(Utils.compareJSONObjects(event.getJSONObject("event_properties"), properties));
+            assertEquals(event.getJSONObject("library").getString("name"), Constants.LIBRARY);
+        }
+    }
+
     @Test
     public void testIdentify() throws JSONException {
         long [] timestamps = {1000, 1001};
@@ -370,7 +415,8 @@ public class AmplitudeClientTest extends BaseTest {
         assertNull(dbHelper.getValue(AmplitudeClient.USER_ID_KEY));
         assertEquals((long)dbHelper.getLongValue(AmplitudeClient.LAST_IDENTIFY_ID_KEY), 1L);
         assertEquals((long)dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY), -1L);
-        assertEquals((long) dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), 1L);
+        assertEquals((long) dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY),
+                Constants.SEQUENCE_NUMBER_BLOCK_SIZE);
         assertEquals((long)dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_TIME_KEY), timestamps[0]);
     }
 
@@ -615,7 +661,8 @@ public class AmplitudeClientTest extends BaseTest {
         assertNull(dbHelper.getValue(AmplitudeClient.USER_ID_KEY));
         assertEquals((long) dbHelper.getLongValue(AmplitudeClient.LAST_IDENTIFY_ID_KEY), 3L);
         assertEquals((long) dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY), 4L);
-        assertEquals((long) dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), 7L);
+        assertEquals((long) dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY),
+                Constants.SEQUENCE_NUMBER_BLOCK_SIZE);
         assertEquals((long)dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_TIME_KEY), timestamps[6]);
     }
 
@@ -916,6 +963,46 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(server.getRequestCount(), 2);
     }
 
+    @Test
+    public void testEventInsertBatchWindow() {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.setOffline(true);
+        amplitude.setEventInsertBatchWindowMillis(1000);
+        looper.runOneTask();
+
+        for (int i = 0; i < 3; i++) {
+            amplitude.logEvent("test" + i);
+        }
+        looper.runOneTask();
+        looper.runOneTask();
+        looper.runOneTask();
+
+        // ids are handed out immediately, rows are written once the window closes
+        assertEquals(amplitude.lastEventId, 3);
+        assertEquals(dbHelper.getWritableDatabase().compileStatement(
+                "SELECT COUNT(*) FROM " + DatabaseHelper.EVENT_TABLE_NAME
+        ).simpleQueryForLong(), 0);
+        assertTrue(dbHelper.hasPendingWrites());
+
+        looper.runToEndOfTasks();
+        assertFalse(dbHelper.hasPendingWrites());
+        assertEquals(dbHelper.getWritableDatabase().compileStatement(
+                "SELECT COUNT(*) FROM " + DatabaseHelper.EVENT_TABLE_NAME
+        ).simpleQueryForLong(), 3);
+        assertEquals(getLastUnsentEvent().optLong("event_id"), 3);
+
+        // closing the window flushes the buffered events on logThread, not the caller's thread
+        amplitude.logEvent("test3");
+        looper.runOneTask();
+        assertTrue(dbHelper.hasPendingWrites());
+        amplitude.setEventInsertBatchWindowMillis(0);
+        assertTrue(dbHelper.hasPendingWrites());
+        looper.runOneTask();
+        assertFalse(dbHelper.hasPendingWrites());
+    }
+
     @Test
     public void testRequestTooLargeBackoffLogic() {
         amplitude.trackSessionEvents(true);
@@ -1159,14 +1246,145 @@ public class AmplitudeClientTest extends BaseTest {
         ));
     }
 
+    @Test
+    public void testPropertyLimits() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setMaxPropertyDepth(2);
+        JSONObject nested = new JSONObject().put("inner", new JSONObject().put("key", "value"));
+        amplitude.logEvent("deep", new JSONObject().put("nested", nested).put("flat", 1));
+        looper.runToEndOfTasks();
+
+        JSONObject event = getLastUnsentEvent();
+        JSONObject eventProperties = event.getJSONObject("event_properties");
+        assertEquals(eventProperties.getInt("flat"), 1);
+        assertEquals(eventProperties.getJSONObject("nested").length(), 0);
+        assertEquals(amplitude.getPropertyLimitExceededCount(), 1);
+
+        amplitude.logEvent("flat", new JSONObject().put("flat", 1));
+        looper.runToEndOfTasks();
+        assertEquals(amplitude.getPropertyLimitExceededCount(), 1);
+
+        amplitude.setMaxPropertyValues(3);
+        amplitude.logEvent("many", new JSONObject().put("a", 1).put("b", 2).put("c", 3));
+        looper.runToEndOfTasks();
+        assertEquals(getLastUnsentEvent().getJSONObject("event_properties").length(), 2);
+        assertEquals(amplitude.getPropertyLimitExceededCount(), 2);
+    }
+
+    @Test
+    public void testTrimMemoryClosesDatabaseOnLogThread() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        SQLiteDatabase db = DatabaseHelper.getDatabaseHelper(context).getWritableDatabase();
+
+        // the system calls back on the main thread, the close waits for logThread
+        ((Application) context).onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue(db.isOpen());
+        looper.runToEndOfTasks();
+        assertFalse(db.isOpen());
+        assertEquals(getUnsentEventCount(), 1);
+    }
+
+    @Test
+    public void testLogTypedEvent() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        Event event = new Event.Builder("typed")
+            .putString("string", "value")
+            .putLong("long", 10)
+            .putDouble("double", 0.5)
+            .putBoolean("boolean", true)
+            .setGroup("orgId", "15")
+            .build();
+        amplitude.logEvent(event);
+        looper.runToEndOfTasks();
+
+        JSONObject logged = getLastUnsentEvent();
+        assertEquals(logged.optString("event_type"), "typed");
+        assertTrue(logged.optLong("timestamp") > 0);
+        assertTrue(logged.optLong("session_id") > 0);
+        JSONObject expectedProperties = new JSONObject().put("string", "value").put("long", 10)
+            .put("double", 0.5).put("boolean", true);
+        assertTrue(Utils.compareJSONObjects(
+            logged.getJSONObject("event_properties"), expectedProperties
+        ));
+        assertTrue(Utils.compareJSONObjects(
+            logged.getJSONObject("groups"), new JSONObject().put("orgId", "15")
+        ));
+        assertEquals(logged.getJSONObject("user_properties").length(), 0);
+
+        amplitude.logEvent(new Event.Builder("typed").setTimestamp(1000).setOutOfSession(true)
+            .build());
+        amplitude.logEvent((Event) null);
+        looper.runToEndOfTasks();
+        logged = getLastUnsentEvent();
+        assertEquals(logged.optLong("timestamp"), 1000);
+        assertEquals(logged.optLong("session_id"), -1);
+        assertEquals(getUnsentEventCount(), 2);
+
+        // the same event can be logged again
+        amplitude.logEvent(event);
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 3);
+    }
+
     @Test
     public void testAutoIncrementSequenceNumber() {
         DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
         int limit = 10;
         for (int i = 0; i < limit; i++) {
             assertEquals(amplitude.getNextSequenceNumber(), i+1);
-            assertEquals(dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), Long.valueOf(i+1));
+            assertEquals(dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY),
+                    Long.valueOf(Constants.SEQUENCE_NUMBER_BLOCK_SIZE));
+        }
+    }
+
+    @Test
+    public void testSequenceNumberBlocks() {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        long blockSize = Constants.SEQUENCE_NUMBER_BLOCK_SIZE;
+        for (long i = 1; i <= blockSize; i++) {
+            assertEquals(amplitude.getNextSequenceNumber(), i);
         }
+        assertEquals((long) dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), blockSize);
+
+        // next block is reserved once the current one runs out
+        assertEquals(amplitude.getNextSequenceNumber(), blockSize + 1);
+        assertEquals((long) dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY),
+                2 * blockSize);
+
+        // a restart skips the rest of the reserved block
+        Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
+        AmplitudeClient restarted = new AmplitudeClient();
+        restarted.initialize(context, apiKey);
+        Shadows.shadowOf(restarted.logThread.getLooper()).runToEndOfTasks();
+        assertEquals(restarted.getNextSequenceNumber(), 2 * blockSize + 1);
+        restarted.logThread.getLooper().quit();
+        restarted.httpThread.getLooper().quit();
+    }
+
+    @Test
+    public void testRestartCatchesUpDeferredEventMetadata() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        amplitude.logEvent("test1");
+        amplitude.identify(new Identify().set("key", "value"));
+        looper.runToEndOfTasks();
+
+        // committed by a process that was killed before its deferred metadata was written
+        dbHelper.addEvent("{\"event_type\":\"killed\"}", 5000L);
+        dbHelper.addIdentify("{\"event_type\":\"$identify\"}", 5001L);
+        dbHelper.insertOrReplaceKeyLongValue(AmplitudeClient.LAST_EVENT_ID_KEY, 1L);
+        dbHelper.insertOrReplaceKeyLongValue(AmplitudeClient.LAST_IDENTIFY_ID_KEY, 1L);
+
+        AmplitudeClient restarted = new AmplitudeClient();
+        restarted.initialize(context, apiKey);
+        Shadows.shadowOf(restarted.logThread.getLooper()).runToEndOfTasks();
+        assertEquals(restarted.lastEventId, 2);
+        assertEquals(restarted.lastIdentifyId, 2);
+        assertEquals(restarted.getNextSequenceNumber(), 5002);
+        restarted.logThread.getLooper().quit();
+        restarted.httpThread.getLooper().quit();
     }
 
     @Test
@@ -1251,6 +1469,29 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(getUnsentEventCount(), eventMaxCount - (eventMaxCount/10) + 1);
     }
 
+    @Test
+    public void testTruncateEventsQueuesBySize() {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        long eventSize = dbHelper.getTotalEventSize();
+        assertTrue(eventSize > 0);
+
+        long eventMaxSizeBytes = 5 * eventSize + eventSize / 2;
+        amplitude.setEventMaxSizeBytes(eventMaxSizeBytes);
+        for (int i = 0; i < 10; i++) {
+            amplitude.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        assertTrue(dbHelper.getTotalEventSize() <= eventMaxSizeBytes);
+        assertTrue(getUnsentEventCount() >= 4);
+        assertTrue(getUnsentEventCount() <= 5);
+        assertEquals(getLastUnsentEvent().optLong("event_id"), 11);
+    }
+
     @Test
     public void testTruncateEventsQueuesWithOneEvent() {
         DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
@@ -1393,7 +1634,9 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(getUnsentIdentifyCount(), 0);
 
         // mock out database helper to force CursorWindowAllocationExceptions
-        DatabaseHelper.instance = new MockDatabaseHelper(context);
+        DatabaseHelper.instances.put(
+            Constants.DEFAULT_INSTANCE, new MockDatabaseHelper(context)
+        );
 
         // force an upload and verify no request sent
         // make sure we catch it during sending of events and defer sending
@@ -1490,4 +1733,99 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(newDeviceId, dbHelper.getValue("device_id"));
         assertTrue(newDeviceId.endsWith("R"));
     }
+
+    @Test
+    public void testEncodeFormBody() throws Exception {
+        String event = "[{\"event_type\":\"a b&c=d\",\"name\":\"\u00e9\u6f22\"}]";
+        byte[] body = Utils.encodeFormBody(
+            new String[] {"v", "e"},
+            new byte[][] {Utils.toUtf8("2"), Utils.toUtf8(event)}
+        );
+        String expected = "v=2&e=" + URLEncoder.encode(event, "UTF-8");
+        assertEquals(new String(body, "US-ASCII"), expected);
+    }
+
+    @Test
+    public void testEventContextIsShared() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.logEvent("test1");
+        amplitude.logEvent("test2");
+        looper.runToEndOfTasks();
+        String eventContext = amplitude.getEventContext();
+        assertSame(amplitude.getEventContext(), eventContext);
+
+        SQLiteDatabase db = DatabaseHelper.getDatabaseHelper(context).getReadableDatabase();
+        assertEquals(DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM contexts", null), 1);
+        // the stored rows only hold the fields that vary from event to event
+        JSONObject row = new JSONObject(
+            DatabaseUtils.stringForQuery(db, "SELECT event FROM events LIMIT 1", null)
+        );
+        assertFalse(row.has("user_id"));
+        assertFalse(row.has("device_id"));
+        assertFalse(row.has("library"));
+
+        amplitude.setUserId("new_user");
+        looper.runToEndOfTasks();
+        amplitude.logEvent("test3");
+        looper.runToEndOfTasks();
+        assertNotEquals(amplitude.getEventContext(), eventContext);
+        assertEquals(DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM contexts", null), 2);
+
+        JSONObject event = getLastUnsentEvent();
+        assertEquals(event.getString("event_type"), "test3");
+        assertEquals(event.getString("user_id"), "new_user");
+        assertEquals(event.getString("device_id"), amplitude.getDeviceId());
+        assertEquals(event.getJSONObject("library").getString("name"), Constants.LIBRARY);
+    }
+
+    @Test
+    public void testGetNamedInstance() {
+        AmplitudeClient defaultInstance = AmplitudeClient.getInstance();
+        assertSame(AmplitudeClient.getInstance(null), defaultInstance);
+        assertSame(AmplitudeClient.getInstance(""), defaultInstance);
+        assertSame(AmplitudeClient.getInstance(Constants.DEFAULT_INSTANCE), defaultInstance);
+
+        AmplitudeClient app2 = AmplitudeClient.getInstance("App2");
+        assertSame(AmplitudeClient.getInstance("app2"), app2);
+        assertNotSame(app2, defaultInstance);
+        assertEquals(app2.instanceName, "app2");
+        assertSame(app2.logThread, defaultInstance.logThread);
+        assertSame(app2.httpThread, defaultInstance.httpThread);
+    }
+
+    @Test
+    public void testNamedInstanceHasSeparateDatabase() throws JSONException {
+        AmplitudeClient app2 = new AmplitudeClient("app2");
+        try {
+            ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+            ShadowLooper app2Looper = Shadows.shadowOf(app2.logThread.getLooper());
+            app2.initialize(context, "app2 api key");
+            app2Looper.runToEndOfTasks();
+
+            amplitude.logEvent("default_event");
+            looper.runToEndOfTasks();
+            app2.logEvent("app2_event_1");
+            app2Looper.runToEndOfTasks();
+            app2.logEvent("app2_event_2");
+            app2Looper.runToEndOfTasks();
+
+            DatabaseHelper app2Db = DatabaseHelper.getDatabaseHelper(context, "app2");
+            assertNotSame(app2Db, DatabaseHelper.getDatabaseHelper(context));
+            assertEquals(app2Db.getDatabaseName(), Constants.DATABASE_NAME + "_app2");
+            assertEquals(getUnsentEventCount(), 1);
+            assertEquals(getLastUnsentEvent().getString("event_type"), "default_event");
+            assertEquals(app2Db.getEventCount(), 2);
+            List<JSONObject> app2Events = app2Db.getEvents(-1, -1);
+            assertEquals(app2Events.get(0).getString("event_type"), "app2_event_1");
+            assertEquals(app2Events.get(1).getString("event_type"), "app2_event_2");
+
+            // each instance keeps its own device id and counters
+            assertEquals(app2Db.getValue(AmplitudeClient.DEVICE_ID_KEY), app2.getDeviceId());
+            assertNotEquals(app2.getDeviceId(), amplitude.getDeviceId());
+            assertEquals((long) app2Db.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY), 2);
+        } finally {
+            app2.logThread.getLooper().quit();
+            app2.httpThread.getLooper().quit();
+        }
+    }
 }
@@ -67,6 +67,11 @@ public class BaseTest {
             // cannot import CursorWindowAllocationException, so we throw the base class instead
             throw new RuntimeException("Cursor window allocation of 2048 kb failed.");
         }
+
+        @Override
+        Cursor rawQueryDb(SQLiteDatabase db, String sql, String[] selectionArgs) {
+            throw new RuntimeException("Cursor window allocation of 2048 kb failed.");
+        }
     }
 
     protected AmplitudeClient amplitude;
@@ -91,7 +96,7 @@ public class BaseTest {
         // Clear the database helper for each test. Better to have isolation.
         // See https://github.com/robolectric/robolectric/issues/569
         // and https://github.com/robolectric/robolectric/issues/1622
-        DatabaseHelper.instance = null;
+        closeDatabaseHelper();
 
         if (withServer) {
             server = new MockWebServer();
@@ -125,7 +130,15 @@ public class BaseTest {
             server.shutdown();
         }
 
-        DatabaseHelper.instance = null;
+        closeDatabaseHelper();
+    }
+
+    // the helpers keep their connections open, so release them before dropping the instances
+    protected void closeDatabaseHelper() {
+        for (DatabaseHelper dbHelper : DatabaseHelper.instances.values()) {
+            dbHelper.close();
+        }
+        DatabaseHelper.instances.clear();
     }
 
     public RecordedRequest runRequest(AmplitudeClient amplitude) {
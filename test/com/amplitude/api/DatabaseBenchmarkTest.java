@@ -0,0 +1,79 @@
+package com.amplitude.api;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Rough insert throughput for the event database under each journal configuration. Runs
+ * against the host's SQLite through Robolectric, so only the relative numbers are meaningful.
+ * It only measures, so it is left out of the normal test run. Remove the {@code @Ignore} and
+ * set {@code ShadowLog.stream} to see the numbers.
+ */
+@Ignore("Benchmark, run manually")
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DatabaseBenchmarkTest extends BaseTest {
+
+    private static final String TAG = "com.amplitude.api.DatabaseBenchmarkTest";
+
+    private static final int EVENT_COUNT = 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    // inserts events one transaction at a time into a freshly created database
+    private long timeInserts(boolean writeAheadLogging, int pageSize, int cacheSize)
+            throws JSONException {
+        closeDatabaseHelper();
+        context.deleteDatabase(Constants.DATABASE_NAME);
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        dbHelper.setDatabaseOptions(writeAheadLogging, pageSize, cacheSize);
+
+        JSONObject event = new JSONObject();
+        event.put("event_type", "benchmark_event");
+        event.put("event_properties", new JSONObject().put("key", "value"));
+        String eventString = event.toString();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            dbHelper.addEvent(eventString);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(dbHelper.getEventCount(), EVENT_COUNT);
+        return elapsed;
+    }
+
+    private void report(String name, long elapsedNanos) {
+        Log.i(TAG, String.format("%-32s %8.0f inserts/s", name,
+            EVENT_COUNT * 1e9 / elapsedNanos));
+    }
+
+    @Test
+    public void testInsertThroughput() throws JSONException {
+        // warm up the JIT and SQLite before measuring
+        timeInserts(false, 0, 0);
+
+        report("rollback journal", timeInserts(false, 0, 0));
+        report("wal, synchronous=NORMAL", timeInserts(true, 0, 0));
+        report("wal, 4k pages, 2000 page cache", timeInserts(true, 4096, 2000));
+    }
+}
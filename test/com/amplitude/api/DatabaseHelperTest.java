@@ -1,5 +1,13 @@
 package com.amplitude.api;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Pair;
+
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
@@ -10,10 +18,17 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
@@ -70,6 +85,30 @@ public class DatabaseHelperTest extends BaseTest {
 
     protected Long getLongValue(String key) { return dbInstance.getLongValue(key); }
 
+    // counts rows actually written to the table, bypassing any buffered inserts
+    protected long getRowCount(String table) {
+        return dbInstance.getWritableDatabase().compileStatement(
+                "SELECT COUNT(*) FROM " + table).simpleQueryForLong();
+    }
+
+    // the smallest id left in the table, or -1 if it is empty
+    protected long getOldestId(String table) {
+        return dbInstance.getWritableDatabase().compileStatement(
+                "SELECT COALESCE(MIN(id), -1) FROM " + table).simpleQueryForLong();
+    }
+
+    // reads a long_store value straight from the table, bypassing deferred values
+    protected Long getPersistedLongValue(String key) {
+        Cursor cursor = dbInstance.getWritableDatabase().rawQuery(
+                "SELECT value FROM " + DatabaseHelper.LONG_STORE_TABLE_NAME + " WHERE key = ?",
+                new String[]{key});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
     @Test
     public void testCreate() {
         dbInstance.onCreate(dbInstance.getWritableDatabase());
@@ -151,6 +190,164 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(1, insertOrReplaceKeyLongValue(key, longValue));
     }
 
+    @Test
+    public void testUpgradeVersion3ToVersion6() throws JSONException {
+        // v3 tables have no sequence number column
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (event) VALUES ('{\"event_type\":\"legacy\"}')");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (event) VALUES ('{\"event_type\":\"test\",\"sequence_number\":5}')");
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.IDENTIFY_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        db.execSQL("INSERT INTO " + DatabaseHelper.IDENTIFY_TABLE_NAME
+                + " (event) VALUES ('{\"event_type\":\"$identify\",\"sequence_number\":3}')");
+
+        // existing rows are backfilled from their json
+        dbInstance.onUpgrade(db, 3, 6);
+        assertEquals(dbInstance.getTotalEventSize(),
+                DatabaseHelper.getEventSize("{\"event_type\":\"legacy\"}")
+                + DatabaseHelper.getEventSize("{\"event_type\":\"test\",\"sequence_number\":5}")
+                + DatabaseHelper.getEventSize(
+                    "{\"event_type\":\"$identify\",\"sequence_number\":3}"));
+        JSONArray batch = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, -1).second);
+        assertEquals(batch.length(), 3);
+        assertEquals(batch.getJSONObject(0).getString("event_type"), "legacy");
+        assertEquals(batch.getJSONObject(1).getString("event_type"), "$identify");
+        assertEquals(batch.getJSONObject(2).getString("event_type"), "test");
+
+        assertEquals(3, dbInstance.addEvent("{\"event_type\":\"test_upgrade\"}", 6L));
+        assertEquals(2, dbInstance.addIdentify("{\"event_type\":\"$identify\"}", 4L));
+        batch = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, -1).second);
+        assertEquals(batch.length(), 5);
+        assertEquals(batch.getJSONObject(2).getLong("event_id"), 2);
+        assertEquals(batch.getJSONObject(2).getString("event_type"), "$identify");
+
+        // upgraded tables can reference a stored context
+        assertEquals(4, dbInstance.addEvent("{\"event_type\":\"test_context\"}", 7L,
+                "{\"platform\":\"Android\"}"));
+        batch = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, -1).second);
+        assertEquals(batch.getJSONObject(5).getString("platform"), "Android");
+        assertFalse(batch.getJSONObject(4).has("platform"));
+    }
+
+    @Test
+    public void testReclaimFreePages() {
+        // switched to incremental auto-vacuum while empty
+        dbInstance.addEvent("{\"event_type\":\"test\"}");
+        dbInstance.removeEvents(1);
+        dbInstance.reclaimFreePages(0, 1000);
+        long converted = dbInstance.getReclaimedBytes();
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null), 2);
+
+        String event = getLargeEvent();
+        for (int i = 0; i < 100; i++) {
+            dbInstance.addEvent(event);
+        }
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        // nothing to reclaim until enough pages are free
+        assertEquals(dbInstance.reclaimFreePages(1, 1000), 0);
+        dbInstance.removeEvents(101);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        assertTrue(freePages > 10);
+        assertEquals(dbInstance.reclaimFreePages(freePages + 1, 1000), 0);
+
+        // at most maxPages at a time
+        assertEquals(dbInstance.reclaimFreePages(1, 10), 10 * pageSize);
+        assertEquals(
+            DatabaseUtils.longForQuery(db, "PRAGMA page_count", null), pageCount - 10
+        );
+        long reclaimed = dbInstance.reclaimFreePages(1, 1000);
+        assertEquals(reclaimed, (freePages - 10) * pageSize);
+        assertEquals(DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null), 0);
+        assertEquals(dbInstance.getReclaimedBytes(), converted + freePages * pageSize);
+        assertEquals(amplitude.getDatabaseBytesReclaimed(), converted + freePages * pageSize);
+    }
+
+    @Test
+    public void testReclaimFreePagesConvertsDatabase() {
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null), 0);
+
+        String event = getLargeEvent();
+        for (int i = 0; i < 100; i++) {
+            dbInstance.addEvent(event);
+        }
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        // only rewritten once no events are left
+        dbInstance.removeEvents(99);
+        assertEquals(dbInstance.reclaimFreePages(1, 1000), 0);
+        assertEquals(DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null), 0);
+
+        dbInstance.removeEvents(100);
+        assertTrue(dbInstance.reclaimFreePages(1, 1000) > 0);
+        db = dbInstance.getWritableDatabase();
+        assertEquals(DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null), 2);
+        assertTrue(DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) < pageCount / 2);
+        assertEquals(dbInstance.addEvent(event), 101);
+    }
+
+    private static String getLargeEvent() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            value.append('x');
+        }
+        return "{\"event_type\":\"" + value + "\"}";
+    }
+
+    @Test
+    public void testEventContexts() throws JSONException {
+        String context =
+                "{\"os_name\":\"android\",\"library\":{\"name\":\"amplitude-android\"}}";
+        String otherContext = "{\"os_name\":\"android\",\"carrier\":\"test\"}";
+        assertEquals(1, dbInstance.addEvent("{\"event_type\":\"first\"}", 1L, context));
+        assertEquals(2, dbInstance.addEvent("{}", 2L, context));
+        assertEquals(1, dbInstance.addIdentify("{\"event_type\":\"$identify\"}", 3L,
+                otherContext));
+        assertEquals(3, dbInstance.addEvent("{\"event_type\":\"no_context\"}", 4L, null));
+
+        // each distinct context is stored once
+        SQLiteDatabase db = dbInstance.getReadableDatabase();
+        assertEquals(DatabaseUtils.queryNumEntries(db, DatabaseHelper.CONTEXT_TABLE_NAME), 2);
+
+        JSONArray batch = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, -1).second);
+        assertEquals(batch.length(), 4);
+        JSONObject first = batch.getJSONObject(0);
+        assertEquals(first.getLong("event_id"), 1);
+        assertEquals(first.getString("event_type"), "first");
+        assertEquals(first.getString("os_name"), "android");
+        assertEquals(first.getJSONObject("library").getString("name"), "amplitude-android");
+        assertEquals(batch.getJSONObject(1).getLong("event_id"), 2);
+        assertEquals(batch.getJSONObject(1).getString("os_name"), "android");
+        assertEquals(batch.getJSONObject(2).getString("carrier"), "test");
+        assertFalse(batch.getJSONObject(3).has("os_name"));
+
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(events.get(0).getString("os_name"), "android");
+        assertEquals(events.get(0).getJSONObject("library").getString("name"),
+                "amplitude-android");
+        assertFalse(events.get(2).has("os_name"));
+
+        // contexts are dropped once no event refers to them
+        dbInstance.removeEvents(3);
+        assertEquals(DatabaseUtils.queryNumEntries(db, DatabaseHelper.CONTEXT_TABLE_NAME), 2);
+        dbInstance.removeIdentifys(1);
+        assertEquals(DatabaseUtils.queryNumEntries(db, DatabaseHelper.CONTEXT_TABLE_NAME), 0);
+
+        // and stored again when next used
+        assertEquals(4, dbInstance.addEvent("{}", 5L, context));
+        batch = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, -1).second);
+        assertEquals(batch.getJSONObject(0).getString("os_name"), "android");
+    }
+
     @Test
     public void testUpgradeVersion1ToVersion3() {
         // store table doesn't exist in v1, insert will fail
@@ -406,53 +603,81 @@ public class DatabaseHelperTest extends BaseTest {
     }
 
     @Test
-    public void testGetNthEventId() {
-        assertEquals(1, addEvent("test_get_nth_event_id_1"));
-        assertEquals(2, addEvent("test_get_nth_event_id_2"));
-        assertEquals(3, addEvent("test_get_nth_event_id_3"));
-        assertEquals(4, addEvent("test_get_nth_event_id_4"));
-        assertEquals(5, addEvent("test_get_nth_event_id_5"));
-
-        assertEquals(1, dbInstance.getNthEventId(0));
-        assertEquals(1, dbInstance.getNthEventId(1));
-        assertEquals(2, dbInstance.getNthEventId(2));
-        assertEquals(3, dbInstance.getNthEventId(3));
-        assertEquals(4, dbInstance.getNthEventId(4));
-        assertEquals(5, dbInstance.getNthEventId(5));
+    public void testRemoveOldestEventsAfterRemovals() {
+        for (int i = 1; i <= 6; i++) {
+            assertEquals(i, addEvent("test_remove_oldest_after_" + i));
+        }
 
         dbInstance.removeEvent(1);
-        assertEquals(2, dbInstance.getNthEventId(1));
+        dbInstance.removeOldestEvents(1);
+        assertEquals(4, dbInstance.getEventCount());
+        assertEquals(3, getOldestId(DatabaseHelper.EVENT_TABLE_NAME));
 
-        dbInstance.removeEvents(3);
-        assertEquals(4, dbInstance.getNthEventId(1));
+        dbInstance.removeEvents(4);
+        dbInstance.removeOldestEvents(1);
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(6, getOldestId(DatabaseHelper.EVENT_TABLE_NAME));
 
         dbInstance.removeEvents(10);
-        assertEquals(-1, dbInstance.getNthEventId(1));
+        dbInstance.removeOldestEvents(1);
+        assertEquals(0, dbInstance.getEventCount());
+        assertEquals(7, addEvent("test_remove_oldest_after_7"));
     }
 
     @Test
-    public void testGetNthIdentifyId() {
-        assertEquals(1, addIdentify("test_get_nth_identify_id_1"));
-        assertEquals(2, addIdentify("test_get_nth_identify_id_2"));
-        assertEquals(3, addIdentify("test_get_nth_identify_id_3"));
-        assertEquals(4, addIdentify("test_get_nth_identify_id_4"));
-        assertEquals(5, addIdentify("test_get_nth_identify_id_5"));
-
-        assertEquals(1, dbInstance.getNthIdentifyId(0));
-        assertEquals(1, dbInstance.getNthIdentifyId(1));
-        assertEquals(2, dbInstance.getNthIdentifyId(2));
-        assertEquals(3, dbInstance.getNthIdentifyId(3));
-        assertEquals(4, dbInstance.getNthIdentifyId(4));
-        assertEquals(5, dbInstance.getNthIdentifyId(5));
+    public void testRemoveOldestIdentifysAfterRemovals() {
+        for (int i = 1; i <= 6; i++) {
+            assertEquals(i, addIdentify("test_remove_oldest_identify_after_" + i));
+        }
 
         dbInstance.removeIdentify(1);
-        assertEquals(2, dbInstance.getNthIdentifyId(1));
+        dbInstance.removeOldestIdentifys(1);
+        assertEquals(4, dbInstance.getIdentifyCount());
+        assertEquals(3, getOldestId(DatabaseHelper.IDENTIFY_TABLE_NAME));
 
-        dbInstance.removeIdentifys(3);
-        assertEquals(4, dbInstance.getNthIdentifyId(1));
+        dbInstance.removeIdentifys(4);
+        dbInstance.removeOldestIdentifys(1);
+        assertEquals(1, dbInstance.getIdentifyCount());
+        assertEquals(6, getOldestId(DatabaseHelper.IDENTIFY_TABLE_NAME));
 
         dbInstance.removeIdentifys(10);
-        assertEquals(-1, dbInstance.getNthIdentifyId(1));
+        dbInstance.removeOldestIdentifys(1);
+        assertEquals(0, dbInstance.getIdentifyCount());
+        assertEquals(7, addIdentify("test_remove_oldest_identify_after_7"));
+    }
+
+    @Test
+    public void testRemoveOldestEvents() {
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, addEvent("test_remove_oldest_" + i));
+        }
+        assertEquals(1, addIdentify("test_remove_oldest_identify_1"));
+
+        dbInstance.removeOldestEvents(3);
+        assertEquals(7, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+        assertEquals(4, getOldestId(DatabaseHelper.EVENT_TABLE_NAME));
+
+        dbInstance.removeEvents(5);
+        dbInstance.removeOldestEvents(2);
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(8, getOldestId(DatabaseHelper.EVENT_TABLE_NAME));
+
+        // a gap left by a single removal only shortens the next eviction
+        dbInstance.removeEvent(8);
+        dbInstance.removeOldestEvents(1);
+        assertEquals(2, dbInstance.getEventCount());
+        dbInstance.removeOldestEvents(1);
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(10, getOldestId(DatabaseHelper.EVENT_TABLE_NAME));
+
+        dbInstance.removeOldestEvents(5);
+        assertEquals(0, dbInstance.getEventCount());
+        dbInstance.removeOldestEvents(5);
+        assertEquals(11, addEvent("test_remove_oldest_11"));
+        dbInstance.removeOldestIdentifys(1);
+        assertEquals(0, dbInstance.getIdentifyCount());
+        assertEquals(1, dbInstance.getEventCount());
     }
 
     @Test
@@ -481,5 +706,472 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(0, dbInstance.getEventCount());
         assertEquals(1, dbInstance.getIdentifyCount());
     }
-}
 
+    @Test
+    public void testConnectionKeptOpen() {
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(1, addEvent("test_connection_1"));
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals("test_connection_1", getLastUnsentEvent().optString("event_type"));
+        assertTrue(db.isOpen());
+        assertSame(db, dbInstance.getWritableDatabase());
+    }
+
+    @Test
+    public void testTrimMemoryClosesConnection() {
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(1, addEvent("test_trim_memory_1"));
+
+        dbInstance.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertTrue(db.isOpen());
+
+        dbInstance.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertFalse(db.isOpen());
+
+        // reopened transparently on next access
+        assertEquals(2, addEvent("test_trim_memory_2"));
+        assertEquals(2, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testBatchedInserts() {
+        dbInstance.setInsertBatchSize(3);
+        assertEquals(1, addEvent("test_batched_1"));
+        assertEquals(2, addEvent("test_batched_2"));
+        assertEquals(0, getRowCount(DatabaseHelper.EVENT_TABLE_NAME));
+        assertEquals(2, dbInstance.getEventCount());
+
+        // batch is full, written in one transaction
+        assertEquals(3, addEvent("test_batched_3"));
+        assertEquals(3, getRowCount(DatabaseHelper.EVENT_TABLE_NAME));
+
+        assertEquals(1, addIdentify("test_batched_identify_1"));
+        assertEquals(4, addEvent("test_batched_4"));
+        assertEquals(0, getRowCount(DatabaseHelper.IDENTIFY_TABLE_NAME));
+
+        // reads and deletes see buffered events
+        dbInstance.removeEvents(3);
+        assertEquals(1, getRowCount(DatabaseHelper.EVENT_TABLE_NAME));
+        assertEquals(1, getRowCount(DatabaseHelper.IDENTIFY_TABLE_NAME));
+        assertEquals(4, getLastUnsentEvent().optLong("event_id"));
+        assertEquals("test_batched_4", getLastUnsentEvent().optString("event_type"));
+
+        // ids keep increasing after rows are removed
+        assertEquals(5, addEvent("test_batched_5"));
+        dbInstance.flushPendingWrites();
+        assertEquals(5, getLastUnsentEvent().optLong("event_id"));
+    }
+
+    @Test
+    public void testSwitchingInsertBatchSizeKeepsIdsUnique() throws JSONException {
+        dbInstance.setInsertBatchSize(2);
+        assertEquals(1, addEvent("test_switch_1"));
+        assertEquals(2, addEvent("test_switch_2"));
+        dbInstance.setInsertBatchSize(1);
+        assertEquals(3, addEvent("test_switch_3"));
+        dbInstance.setInsertBatchSize(2);
+        assertEquals(4, addEvent("test_switch_4"));
+        assertEquals(5, addEvent("test_switch_5"));
+        assertEquals(5, getRowCount(DatabaseHelper.EVENT_TABLE_NAME));
+        assertEquals(5, dbInstance.getEventCount());
+
+        // every event was stored under the id it was given
+        JSONArray batch = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, -1).second);
+        assertEquals(batch.length(), 5);
+        for (int i = 0; i < batch.length(); i++) {
+            assertEquals(batch.getJSONObject(i).getLong("event_id"), i + 1);
+            assertEquals(batch.getJSONObject(i).getString("event_type"), "test_switch_" + (i + 1));
+        }
+    }
+
+    @Test
+    public void testBatchedInsertsFlushedOnClose() {
+        assertEquals(1, addEvent("test_batched_close_1"));
+        dbInstance.setInsertBatchSize(10);
+        assertEquals(2, addEvent("test_batched_close_2"));
+        assertEquals(3, addEvent("test_batched_close_3"));
+        assertEquals(1, getRowCount(DatabaseHelper.EVENT_TABLE_NAME));
+
+        dbInstance.close();
+        assertEquals(3, getRowCount(DatabaseHelper.EVENT_TABLE_NAME));
+        assertEquals(4, addEvent("test_batched_close_4"));
+    }
+
+    @Test
+    public void testEventCountsKeptInMemory() {
+        assertEquals(0, dbInstance.getEventCount());
+        assertEquals(1, addEvent("test_counts_1"));
+        assertEquals(2, addEvent("test_counts_2"));
+        assertEquals(1, addIdentify("test_counts_identify_1"));
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+        assertEquals(3, dbInstance.getTotalEventCount());
+
+        // rows changed behind the helper's back are not picked up until it reseeds
+        dbInstance.getWritableDatabase().execSQL(
+                "DELETE FROM " + DatabaseHelper.EVENT_TABLE_NAME);
+        assertEquals(2, dbInstance.getEventCount());
+        dbInstance.close();
+        assertEquals(0, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+
+        dbInstance.removeIdentifys(10);
+        assertEquals(0, dbInstance.getIdentifyCount());
+        assertEquals(3, addEvent("test_counts_3"));
+        assertEquals(1, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testDeferredLongValues() {
+        String key = "test_deferred_key";
+        dbInstance.insertOrReplaceKeyLongValueDeferred(key, 1L);
+        assertEquals(1L, (long) getLongValue(key));
+        assertNull(getPersistedLongValue(key));
+        assertTrue(dbInstance.hasPendingWrites());
+
+        // written in the same transaction as the next event
+        dbInstance.insertOrReplaceKeyLongValueDeferred(key, 2L);
+        assertEquals(1, addEvent("test_deferred_event"));
+        assertEquals(2L, (long) getPersistedLongValue(key));
+        assertFalse(dbInstance.hasPendingWrites());
+
+        dbInstance.insertOrReplaceKeyLongValueDeferred(key, 3L);
+        dbInstance.flushPendingWrites();
+        assertEquals(3L, (long) getPersistedLongValue(key));
+
+        // a write-through value replaces a deferred one
+        dbInstance.insertOrReplaceKeyLongValueDeferred(key, 4L);
+        insertOrReplaceKeyLongValue(key, 5L);
+        dbInstance.flushPendingWrites();
+        assertEquals(5L, (long) getPersistedLongValue(key));
+        assertEquals(5L, (long) getLongValue(key));
+    }
+
+    protected String getPragma(String pragma) {
+        Cursor cursor = dbInstance.getWritableDatabase().rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testDatabaseOptions() {
+        assertEquals(1, addEvent("test_options_1"));
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        dbInstance.setDatabaseOptions(true, 0, 500);
+        assertFalse(db.isOpen());
+
+        assertEquals(getPragma("journal_mode").toLowerCase(), "wal");
+        assertEquals(getPragma("synchronous"), "1");
+        assertEquals(getPragma("cache_size"), "500");
+        assertEquals(2, addEvent("test_options_2"));
+        assertEquals(2, dbInstance.getEventCount());
+
+        dbInstance.setDatabaseOptions(false, 0, 0);
+        assertFalse(getPragma("journal_mode").toLowerCase().equals("wal"));
+        assertEquals(2, dbInstance.getEventCount());
+    }
+
+    // pauses event reads inside the query until released
+    private static class BlockingReadDatabaseHelper extends DatabaseHelper {
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        final CountDownLatch releaseRead = new CountDownLatch(1);
+        volatile boolean releasedInTime = false;
+
+        BlockingReadDatabaseHelper(Context context) {
+            super(context);
+        }
+
+        @Override
+        Cursor queryDb(
+            SQLiteDatabase db, String table, String[] columns, String selection,
+            String[] selectionArgs, String groupBy, String having, String orderBy, String limit
+        ) {
+            readStarted.countDown();
+            try {
+                releasedInTime = releaseRead.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.queryDb(
+                db, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit
+            );
+        }
+    }
+
+    @Test
+    public void testReadsDoNotBlockInserts() throws Exception {
+        closeDatabaseHelper();
+        final BlockingReadDatabaseHelper blockingDb = new BlockingReadDatabaseHelper(context);
+        DatabaseHelper.instances.put(Constants.DEFAULT_INSTANCE, blockingDb);
+        dbInstance = blockingDb;
+        assertEquals(1, addEvent("test_read_1"));
+
+        final List<List<JSONObject>> results = new ArrayList<List<JSONObject>>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    results.add(blockingDb.getEvents(-1, -1));
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+            }
+        });
+        reader.start();
+        assertTrue(blockingDb.readStarted.await(10, TimeUnit.SECONDS));
+
+        // the read is stalled mid-query, writes still go through
+        assertEquals(2, addEvent("test_read_2"));
+        assertEquals(1, addIdentify("test_read_identify_1"));
+        assertEquals(2, dbInstance.getEventCount());
+        dbInstance.removeIdentifys(1);
+        assertEquals(0, dbInstance.getIdentifyCount());
+
+        blockingDb.releaseRead.countDown();
+        reader.join(10000);
+        assertTrue(blockingDb.releasedInTime);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).size() >= 1);
+        assertEquals(1, results.get(0).get(0).optLong("event_id"));
+    }
+
+    @Test
+    public void testTrimMemorySkippedDuringRead() throws Exception {
+        closeDatabaseHelper();
+        final BlockingReadDatabaseHelper blockingDb = new BlockingReadDatabaseHelper(context);
+        DatabaseHelper.instances.put(Constants.DEFAULT_INSTANCE, blockingDb);
+        dbInstance = blockingDb;
+        assertEquals(1, addEvent("test_trim_read_1"));
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blockingDb.getEvents(-1, -1);
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+            }
+        });
+        reader.start();
+        assertTrue(blockingDb.readStarted.await(10, TimeUnit.SECONDS));
+
+        // returns right away instead of waiting for the read, and leaves the connection open
+        dbInstance.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertTrue(db.isOpen());
+
+        blockingDb.releaseRead.countDown();
+        reader.join(10000);
+        assertTrue(blockingDb.releasedInTime);
+        dbInstance.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertFalse(db.isOpen());
+    }
+
+    @Test
+    public void testDatabaseNameForInstance() {
+        assertEquals(DatabaseHelper.getDatabaseNameForInstance(null), Constants.DATABASE_NAME);
+        assertEquals(DatabaseHelper.getDatabaseNameForInstance("App_2-b"),
+                Constants.DATABASE_NAME + "_app_2-b");
+
+        // names that are not safe in a file name are hashed
+        String escaped = DatabaseHelper.getDatabaseNameForInstance("../../evil");
+        assertTrue(escaped.matches(Constants.DATABASE_NAME + "_md5_[0-9a-f]{32}"));
+        assertFalse(escaped.equals(DatabaseHelper.getDatabaseNameForInstance("../evil")));
+        assertEquals(DatabaseHelper.getDatabaseNameForInstance("a/b"),
+                DatabaseHelper.getDatabaseNameForInstance("A/B"));
+
+        DatabaseHelper helper = DatabaseHelper.getDatabaseHelper(context, "a/../b");
+        assertEquals(helper.addEvent("{\"event_type\":\"test\"}"), 1);
+        assertEquals(context.getDatabasePath(helper.getDatabaseName()).getParentFile(),
+                context.getDatabasePath(Constants.DATABASE_NAME).getParentFile());
+    }
+
+    @Test
+    public void testGetEventsAndIdentifys() throws JSONException {
+        assertEquals(1, dbInstance.addEvent("{\"event_type\":\"event_1\"}", 1L));
+        assertEquals(1, dbInstance.addIdentify("{\"event_type\":\"$identify\"}", 2L));
+        assertEquals(2, dbInstance.addEvent("{\"event_type\":\"event_2\"}", 3L));
+        assertEquals(2, dbInstance.addIdentify("{\"event_type\":\"$identify\"}", 4L));
+        assertEquals(3, dbInstance.addEvent("{\"event_type\":\"event_3\"}", 5L));
+
+        // merged by sequence number, max ids cover only the rows in the batch
+        Pair<Pair<Long, Long>, String> batch = dbInstance.getEventsAndIdentifys(-1, -1, 3);
+        JSONArray events = new JSONArray(batch.second);
+        assertEquals(events.length(), 3);
+        assertEquals(events.getJSONObject(0).getString("event_type"), "event_1");
+        assertEquals(events.getJSONObject(1).getLong("event_id"), 1);
+        assertEquals(events.getJSONObject(2).getString("event_type"), "event_2");
+        assertEquals((long) batch.first.first, 2);
+        assertEquals((long) batch.first.second, 1);
+
+        // upper bounds apply per table
+        batch = dbInstance.getEventsAndIdentifys(1, -1, 10);
+        assertEquals(new JSONArray(batch.second).length(), 3);
+        assertEquals((long) batch.first.first, 1);
+        assertEquals((long) batch.first.second, 2);
+
+        batch = dbInstance.getEventsAndIdentifys(-1, 0, 10);
+        assertEquals(new JSONArray(batch.second).length(), 3);
+        assertEquals((long) batch.first.first, 3);
+        assertEquals((long) batch.first.second, -1);
+    }
+
+    @Test
+    public void testAppendEventWithId() throws JSONException {
+        StringBuilder events = new StringBuilder("[");
+        assertTrue(DatabaseHelper.appendEventWithId(events, "{\"event_type\":\"test\"}", 1));
+        assertTrue(DatabaseHelper.appendEventWithId(events, " { } ", 2));
+        assertFalse(DatabaseHelper.appendEventWithId(events, "[1, 2]", 3));
+        assertFalse(DatabaseHelper.appendEventWithId(events, "{", 4));
+        assertFalse(DatabaseHelper.appendEventWithId(events, null, 5));
+        events.append(']');
+        assertEquals(events.toString(),
+            "[{\"event_id\":1,\"event_type\":\"test\"},{\"event_id\":2}]");
+
+        // malformed rows are left out of the batch but still covered by the max ids
+        dbInstance.addEvent("not json", 1L);
+        dbInstance.addEvent("{\"event_type\":\"test\"}", 2L);
+        Pair<Pair<Long, Long>, String> batch = dbInstance.getEventsAndIdentifys(-1, -1, 10);
+        assertEquals(new JSONArray(batch.second).length(), 1);
+        assertEquals((long) batch.first.first, 2);
+    }
+
+    @Test
+    public void testAppendEventWithIdReplacesStoredKeys() throws JSONException {
+        StringBuilder events = new StringBuilder("[");
+        assertTrue(DatabaseHelper.appendEventWithId(events,
+            "{\"event_id\":7, \"event_type\":\"test\",\"event_properties\":{\"event_id\":8}}",
+            1, null));
+        assertTrue(DatabaseHelper.appendEventWithId(events,
+            "{\"user_id\":\"stored\",\"event_id\":[\"a,b\",{}],\"name\":\"}\\\"\"}", 2,
+            "{\"user_id\":\"context\",\"library\":{\"name\":\"amplitude-android\"}}"));
+        events.append(']');
+        assertEquals(events.toString(), "[{\"event_id\":1, \"event_type\":\"test\","
+            + "\"event_properties\":{\"event_id\":8}},{\"event_id\":2,\"user_id\":\"context\","
+            + "\"library\":{\"name\":\"amplitude-android\"},\"name\":\"}\\\"\"}]");
+
+        // rows stored with their own event_id are sent with the row id, as before
+        dbInstance.addEvent("{\"event_id\":100,\"event_type\":\"stored\"}", 1L,
+            "{\"user_id\":\"context\"}");
+        Pair<Pair<Long, Long>, String> batch = dbInstance.getEventsAndIdentifys(-1, -1, 10);
+        JSONObject event = new JSONArray(batch.second).getJSONObject(0);
+        assertEquals(event.getLong("event_id"), 1);
+        assertEquals(event.getString("event_type"), "stored");
+        assertEquals(event.length(), 3);
+    }
+
+    @Test
+    public void testGetEventsAndIdentifysReadsLargeEventsInChunks() throws JSONException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; value.length() < Constants.EVENT_READ_CHUNK_SIZE * 5 / 2; i++) {
+            value.append("\u00e9v\u00e9nement ").append(i).append(' ');
+        }
+        JSONObject large = new JSONObject().put("event_type", "large")
+                .put("event_properties", new JSONObject().put("value", value.toString()));
+        assertEquals(1, dbInstance.addEvent("{\"event_type\":\"small\"}", 1L));
+        assertEquals(2, dbInstance.addEvent(large.toString(), 2L));
+        assertEquals(1, dbInstance.addIdentify("{\"event_type\":\"$identify\"}", 3L));
+
+        JSONArray events = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, 10).second);
+        assertEquals(events.length(), 3);
+        assertEquals(events.getJSONObject(0).getString("event_type"), "small");
+        assertEquals(events.getJSONObject(1).getLong("event_id"), 2);
+        assertEquals(events.getJSONObject(1).getJSONObject("event_properties")
+                .getString("value"), value.toString());
+        assertEquals(events.getJSONObject(2).getString("event_type"), "$identify");
+    }
+
+    @Test
+    public void testRemoveOldestEventsToSize() {
+        assertEquals(DatabaseHelper.getEventSize("{}"), 2);
+        assertEquals(DatabaseHelper.getEventSize("\u00e9\u20ac\ud83d\ude00"), 2 + 3 + 4);
+
+        String event = "{\"event_type\":\"test\"}";
+        long size = DatabaseHelper.getEventSize(event);
+        assertEquals(1, dbInstance.addEvent(event, 1L));
+        assertEquals(1, dbInstance.addIdentify(event, 2L));
+        assertEquals(2, dbInstance.addEvent(event, 3L));
+        dbInstance.setInsertBatchSize(10);
+        assertEquals(3, dbInstance.addEvent(event, 4L));
+        assertEquals(dbInstance.getTotalEventSize(), 4 * size);
+
+        // oldest rows go first, across both tables
+        dbInstance.removeOldestEventsToSize(3 * size);
+        assertEquals(dbInstance.getTotalEventSize(), 3 * size);
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+
+        dbInstance.removeOldestEventsToSize(size + 1);
+        assertEquals(dbInstance.getTotalEventSize(), size);
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(0, dbInstance.getIdentifyCount());
+
+        // sizes are reseeded from the size column after a reopen
+        dbInstance.close();
+        assertEquals(dbInstance.getTotalEventSize(), size);
+        dbInstance.removeEvent(3);
+        assertEquals(dbInstance.getTotalEventSize(), 0);
+    }
+
+    @Test
+    public void testEventCompression() throws JSONException {
+        JSONObject event = new JSONObject().put("event_type", "test_compression")
+                .put("os_name", "android").put("platform", "Android")
+                .put("library", new JSONObject().put("name", "amplitude-android"))
+                .put("event_properties", new JSONObject().put("unicode", "\u00e9\ud83d\ude00"));
+        assertEquals(1, dbInstance.addEvent(event.toString(), 1L));
+        dbInstance.setEventCompression(true);
+        assertEquals(2, dbInstance.addEvent(event.toString(), 2L));
+        dbInstance.setInsertBatchSize(10);
+        assertEquals(1, dbInstance.addIdentify(event.toString(), 3L));
+
+        Cursor cursor = dbInstance.getWritableDatabase().rawQuery("SELECT TYPEOF(event) FROM "
+                + DatabaseHelper.EVENT_TABLE_NAME + " ORDER BY id", null);
+        assertTrue(cursor.moveToNext());
+        assertEquals(cursor.getString(0), "text");
+        assertTrue(cursor.moveToNext());
+        assertEquals(cursor.getString(0), "blob");
+        cursor.close();
+        long plainSize = DatabaseHelper.getEventSize(event.toString());
+        assertTrue(dbInstance.getTotalEventSize() < 2 * plainSize);
+
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(events.size(), 2);
+        assertEquals(events.get(1).getLong("event_id"), 2);
+        assertEquals(events.get(1).getJSONObject("event_properties").getString("unicode"),
+                "\u00e9\ud83d\ude00");
+
+        JSONArray batch = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, 10).second);
+        assertEquals(batch.length(), 3);
+        for (int i = 0; i < 3; i++) {
+            JSONObject decoded = batch.getJSONObject(i);
+            decoded.remove("event_id");
+            assertTrue(Utils.compareJSONObjects(decoded, event));
+        }
+
+        // compressed rows larger than a read chunk are read in pieces too
+        Random random = new Random(1);
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < Constants.EVENT_READ_CHUNK_SIZE * 2) {
+            padding.append((char) ('a' + random.nextInt(26)));
+        }
+        JSONObject large = new JSONObject().put("event_type", "large").put("padding", padding);
+        dbInstance.removeEvents(2);
+        dbInstance.removeIdentifys(1);
+        dbInstance.addEvent(large.toString(), 4L);
+        batch = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, 10).second);
+        assertEquals(batch.length(), 1);
+        assertEquals(batch.getJSONObject(0).getString("padding"), padding.toString());
+
+        // unknown codec versions and corrupt rows are not decoded
+        assertNull(EventCodec.decode(new byte[] { 2, 1, 2 }));
+        byte[] encoded = EventCodec.encode(event.toString());
+        byte[] truncated = new byte[encoded.length / 2];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        assertNull(EventCodec.decode(truncated));
+    }
+}
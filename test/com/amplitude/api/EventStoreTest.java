@@ -0,0 +1,431 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventStoreTest extends BaseTest {
+
+    private File journal;
+    private File segments;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        journal = new File(context.getFilesDir(), "amplitude-events");
+        journal.delete();
+        segments = new File(context.getFilesDir(), "amplitude-segments");
+        deleteDirectory(segments);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+        journal.delete();
+        deleteDirectory(segments);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private int getSegmentCount() {
+        int count = 0;
+        for (String name : segments.list()) {
+            if (name.endsWith(".seg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static JSONArray getBatch(EventStore store) throws JSONException {
+        return new JSONArray(store.getEventsAndIdentifys(-1, -1, -1).second);
+    }
+
+    private void checkStore(EventStore store) throws JSONException {
+        String context = "{\"os_name\":\"android\"}";
+        assertEquals(store.addEvent("{\"event_type\":\"legacy\"}", null, null), 1);
+        assertEquals(store.addEvent("{\"event_type\":\"first\"}", 2L, context), 2);
+        assertEquals(store.addIdentify("{\"event_type\":\"$identify\"}", 1L, context), 1);
+        assertEquals(store.addEvent("{\"event_type\":\"last\"}", 3L, context), 3);
+        assertEquals(store.getEventCount(), 3);
+        assertEquals(store.getIdentifyCount(), 1);
+        assertEquals(store.getTotalEventCount(), 4);
+        assertEquals(store.getTotalEventSize(), DatabaseHelper.getEventSize(
+            "{\"event_type\":\"legacy\"}{\"event_type\":\"first\"}"
+            + "{\"event_type\":\"$identify\"}{\"event_type\":\"last\"}"));
+
+        // merged by sequence number, with the context and event id added
+        Pair<Pair<Long, Long>, String> batch = store.getEventsAndIdentifys(-1, -1, 3);
+        assertEquals((long) batch.first.first, 2L);
+        assertEquals((long) batch.first.second, 1L);
+        JSONArray events = new JSONArray(batch.second);
+        assertEquals(events.length(), 3);
+        assertEquals(events.getJSONObject(0).getString("event_type"), "legacy");
+        assertFalse(events.getJSONObject(0).has("os_name"));
+        assertEquals(events.getJSONObject(1).getString("event_type"), "$identify");
+        assertEquals(events.getJSONObject(1).getLong("event_id"), 1);
+        assertEquals(events.getJSONObject(2).getString("event_type"), "first");
+        assertEquals(events.getJSONObject(2).getString("os_name"), "android");
+
+        store.removeEvents(2);
+        store.removeIdentifys(1);
+        events = getBatch(store);
+        assertEquals(events.length(), 1);
+        assertEquals(events.getJSONObject(0).getLong("event_id"), 3);
+
+        // ids keep increasing after removals
+        assertEquals(store.addEvent("{\"event_type\":\"next\"}", 4L, null), 4);
+        store.removeEvent(3);
+        store.removeOldestEvents(1);
+        assertEquals(store.getTotalEventCount(), 0);
+        assertEquals(store.getTotalEventSize(), 0);
+
+        assertEquals(store.addEvent("{\"event_type\":\"a\"}", 5L, null), 5);
+        assertEquals(store.addIdentify("{\"event_type\":\"b\"}", 6L, null), 2);
+        store.removeOldestEventsToSize(DatabaseHelper.getEventSize("{\"event_type\":\"b\"}"));
+        assertEquals(store.getEventCount(), 0);
+        assertEquals(store.getIdentifyCount(), 1);
+        store.removeOldestIdentifys(1);
+        assertEquals(store.getIdentifyCount(), 0);
+
+        assertEquals(store.insertOrReplaceKeyValue("device_id", "test_device"), 1);
+        assertEquals(store.getValue("device_id"), "test_device");
+        store.insertOrReplaceKeyValue("device_id", null);
+        assertNull(store.getValue("device_id"));
+        store.insertOrReplaceKeyLongValue("opt_out", 1L);
+        store.insertOrReplaceKeyLongValueDeferred("last_event_time", 1000L);
+        assertEquals((long) store.getLongValue("opt_out"), 1L);
+        assertEquals((long) store.getLongValue("last_event_time"), 1000L);
+        assertNull(store.getLongValue("missing"));
+    }
+
+    // events and identifys logged interleaved come back merged, a batch at a time
+    private void checkUploadOrder(EventStore store) throws JSONException {
+        long sequenceNumber = 1;
+        for (int i = 0; i < 20; i++) {
+            store.addEvent("{\"event_type\":\"e" + i + "\"}", sequenceNumber++, null);
+            if (i % 3 == 0) {
+                store.addIdentify("{\"event_type\":\"i" + i + "\"}", sequenceNumber++, null);
+            }
+        }
+
+        Pair<Pair<Long, Long>, String> batch = store.getEventsAndIdentifys(-1, -1, 5);
+        JSONArray events = new JSONArray(batch.second);
+        assertEquals(events.length(), 5);
+        String[] expected = {"e0", "i0", "e1", "e2", "e3"};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(events.getJSONObject(i).getString("event_type"), expected[i]);
+        }
+        assertEquals((long) batch.first.first, 4L);
+        assertEquals((long) batch.first.second, 1L);
+
+        // upper bounds stop each side of the merge on its own
+        batch = store.getEventsAndIdentifys(2, -1, 100);
+        assertEquals(new JSONArray(batch.second).length(), 9);
+        assertEquals((long) batch.first.first, 2L);
+        assertEquals((long) batch.first.second, 7L);
+
+        // eviction drops the oldest events in the same order
+        store.removeOldestEventsToSize(store.getTotalEventSize()
+                - DatabaseHelper.getEventSize("{\"event_type\":\"e0\"}")
+                - DatabaseHelper.getEventSize("{\"event_type\":\"i0\"}"));
+        assertEquals(store.getEventCount(), 19);
+        assertEquals(store.getIdentifyCount(), 6);
+        assertEquals(getBatch(store).getJSONObject(0).getString("event_type"), "e1");
+    }
+
+    @Test
+    public void testInMemoryEventStore() throws JSONException {
+        checkStore(new InMemoryEventStore());
+    }
+
+    @Test
+    public void testInMemoryEventStoreUploadOrder() throws JSONException {
+        checkUploadOrder(new InMemoryEventStore());
+    }
+
+    @Test
+    public void testFileEventStore() throws JSONException {
+        checkStore(new FileEventStore(journal));
+    }
+
+    @Test
+    public void testFileEventStoreReopen() throws JSONException {
+        FileEventStore store = new FileEventStore(journal);
+        store.addEvent("{\"event_type\":\"first\"}", 1L, "{\"os_name\":\"android\"}");
+        store.addEvent("{\"event_type\":\"second\"}", 2L, "{\"os_name\":\"android\"}");
+        store.addIdentify("{\"event_type\":\"$identify\"}", 3L, null);
+        store.removeEvent(1);
+        store.insertOrReplaceKeyValue("device_id", "test_device");
+        store.insertOrReplaceKeyLongValueDeferred("last_event_time", 1000L);
+        assertTrue(store.hasPendingWrites());
+        store.flushPendingWrites();
+        assertFalse(store.hasPendingWrites());
+
+        FileEventStore reopened = new FileEventStore(journal);
+        assertEquals(reopened.getEventCount(), 1);
+        assertEquals(reopened.getIdentifyCount(), 1);
+        JSONArray events = getBatch(reopened);
+        assertEquals(events.getJSONObject(0).getString("event_type"), "second");
+        assertEquals(events.getJSONObject(0).getLong("event_id"), 2);
+        assertEquals(events.getJSONObject(0).getString("os_name"), "android");
+        assertEquals(events.getJSONObject(1).getString("event_type"), "$identify");
+        assertEquals(reopened.getValue("device_id"), "test_device");
+        assertEquals((long) reopened.getLongValue("last_event_time"), 1000L);
+        assertEquals(reopened.addEvent("{\"event_type\":\"third\"}", 4L, null), 3);
+    }
+
+    @Test
+    public void testFileEventStoreDropsIncompleteRecord() throws Exception {
+        FileEventStore store = new FileEventStore(journal);
+        store.addEvent("{\"event_type\":\"first\"}", 1L, null);
+        long length = journal.length();
+        store.addEvent("{\"event_type\":\"second\"}", 2L, null);
+
+        // cut the last record short, as if the process died while writing it
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        file.setLength(journal.length() - 3);
+        file.close();
+
+        FileEventStore reopened = new FileEventStore(journal);
+        assertEquals(reopened.getEventCount(), 1);
+        assertEquals(journal.length(), length);
+        assertEquals(reopened.addEvent("{\"event_type\":\"third\"}", 3L, null), 2);
+        assertEquals(getBatch(new FileEventStore(journal)).length(), 2);
+    }
+
+    @Test
+    public void testFileEventStoreCompaction() throws JSONException {
+        FileEventStore store = new FileEventStore(journal);
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            padding.append('x');
+        }
+        String event = "{\"event_type\":\"test\",\"padding\":\"" + padding + "\"}";
+        for (int i = 0; i < 500; i++) {
+            store.addEvent(event, (long) i, "{\"os_name\":\"android\"}");
+        }
+        store.insertOrReplaceKeyValue("device_id", "test_device");
+        assertTrue(journal.length() > 500 * 1000);
+
+        // emptying the store rewrites the journal with just the values
+        store.removeEvents(500);
+        assertTrue(journal.length() < 1000);
+        assertEquals(store.addEvent(event, 500L, null), 501);
+
+        FileEventStore reopened = new FileEventStore(journal);
+        assertEquals(reopened.getEventCount(), 1);
+        assertEquals(getBatch(reopened).getJSONObject(0).getLong("event_id"), 501);
+        assertEquals(reopened.getValue("device_id"), "test_device");
+        assertEquals(reopened.addEvent(event, 501L, null), 502);
+    }
+
+    @Test
+    public void testFileEventStoreCompactionBacksOff() throws JSONException {
+        FileEventStore store = new FileEventStore(journal);
+        String event = "{\"event_type\":\"test\",\"padding\":\"" + repeat('x', 1000) + "\"}";
+        for (int i = 0; i < 500; i++) {
+            store.addEvent(event, (long) i, null);
+        }
+
+        // the snapshot cannot be written while a directory is in its place
+        File snapshot = new File(journal.getPath() + ".tmp");
+        assertTrue(snapshot.mkdir());
+        store.removeEvents(500);
+        long failedLength = journal.length();
+        assertTrue(failedLength > 500 * 1000);
+        // the failed compaction cleans up after itself, which removes the empty directory
+        assertFalse(snapshot.exists());
+
+        // not tried again on every write, only once the journal has doubled
+        long maxLength = failedLength;
+        for (int i = 0; i < 1000 && journal.length() >= maxLength; i++) {
+            maxLength = journal.length();
+            store.insertOrReplaceKeyValue("padding", repeat('y', 1000));
+        }
+        assertTrue(maxLength >= 2 * failedLength - 2000);
+        assertTrue(journal.length() < 2000);
+        assertEquals(new FileEventStore(journal).getValue("padding"), repeat('y', 1000));
+    }
+
+    @Test
+    public void testClientWithInMemoryEventStore() throws JSONException {
+        InMemoryEventStore store = new InMemoryEventStore();
+        amplitude.setEventStore(store);
+        amplitude.initialize(context, apiKey);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        assertSame(amplitude.eventStore, store);
+        assertNotNull(store.getValue(AmplitudeClient.DEVICE_ID_KEY));
+
+        // too late to switch once initialized
+        amplitude.setEventStore(new InMemoryEventStore());
+        assertSame(amplitude.eventStore, store);
+
+        amplitude.logEvent("test_event");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(store.getEventCount(), 1);
+        assertEquals(DatabaseHelper.getDatabaseHelper(context).getEventCount(), 0);
+
+        JSONArray events = getEventsFromRequest(runRequest(amplitude));
+        assertEquals(events.length(), 1);
+        assertEquals(events.getJSONObject(0).getString("event_type"), "test_event");
+        assertEquals(events.getJSONObject(0).getString("platform"), Constants.PLATFORM);
+        looper.runToEndOfTasks();
+        assertEquals(store.getTotalEventCount(), 0);
+    }
+
+    @Test
+    public void testSegmentedEventStore() throws JSONException {
+        checkStore(new SegmentedEventStore(segments));
+    }
+
+    @Test
+    public void testSegmentedEventStoreUploadOrder() throws JSONException {
+        checkUploadOrder(new SegmentedEventStore(segments, 1024));
+    }
+
+    @Test
+    public void testSegmentedEventStoreReopen() throws JSONException {
+        SegmentedEventStore store = new SegmentedEventStore(segments);
+        store.addEvent("{\"event_type\":\"first\"}", 1L, "{\"os_name\":\"android\"}");
+        store.addEvent("{\"event_type\":\"second\"}", 2L, "{\"os_name\":\"android\"}");
+        store.addEvent("{\"event_type\":\"third\"}", 3L, null);
+        store.addIdentify("{\"event_type\":\"$identify\"}", 4L, null);
+        store.removeEvent(2);
+        store.insertOrReplaceKeyValue("device_id", "test_device");
+
+        SegmentedEventStore reopened = new SegmentedEventStore(segments);
+        assertEquals(reopened.getEventCount(), 2);
+        assertEquals(reopened.getIdentifyCount(), 1);
+        JSONArray events = getBatch(reopened);
+        assertEquals(events.getJSONObject(0).getString("event_type"), "first");
+        assertEquals(events.getJSONObject(0).getString("os_name"), "android");
+        assertEquals(events.getJSONObject(1).getString("event_type"), "third");
+        assertEquals(events.getJSONObject(2).getString("event_type"), "$identify");
+        assertEquals(reopened.getValue("device_id"), "test_device");
+        assertEquals(reopened.addEvent("{\"event_type\":\"fourth\"}", 5L, null), 4);
+
+        // the removed ids stay removed once the rest is uploaded
+        reopened.removeEvents(4);
+        reopened = new SegmentedEventStore(segments);
+        assertEquals(reopened.getEventCount(), 0);
+        assertEquals(reopened.addEvent("{\"event_type\":\"fifth\"}", 6L, null), 5);
+    }
+
+    @Test
+    public void testSegmentedEventStoreDeletesSegments() throws JSONException {
+        SegmentedEventStore store = new SegmentedEventStore(segments, 1024);
+        String event = "{\"event_type\":\"test\",\"padding\":\"" + repeat('x', 200) + "\"}";
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(store.addEvent(event, (long) i, "{\"os_name\":\"android\"}"), i);
+        }
+        int segmentCount = getSegmentCount();
+        assertTrue(segmentCount >= 5);
+
+        // a larger event than the segment size gets a segment of its own
+        assertEquals(store.addEvent("{\"padding\":\"" + repeat('y', 2000) + "\"}", 21L, null), 21);
+        assertEquals(getSegmentCount(), segmentCount + 1);
+
+        store.removeEvents(10);
+        assertTrue(getSegmentCount() < segmentCount + 1);
+        assertEquals(store.getEventCount(), 11);
+        JSONArray events = getBatch(new SegmentedEventStore(segments, 1024));
+        assertEquals(events.length(), 11);
+        assertEquals(events.getJSONObject(0).getLong("event_id"), 11);
+        assertEquals(events.getJSONObject(0).getString("os_name"), "android");
+        assertEquals(events.getJSONObject(10).getString("padding").length(), 2000);
+
+        store.removeEvents(21);
+        assertEquals(getSegmentCount(), 0);
+    }
+
+    @Test
+    public void testSegmentedEventStoreRemovesByIdAcrossSegments() throws JSONException {
+        SegmentedEventStore store = new SegmentedEventStore(segments, 1024);
+        String event = "{\"event_type\":\"test\",\"padding\":\"" + repeat('x', 200) + "\"}";
+        for (int i = 1; i <= 20; i++) {
+            store.addEvent(event, (long) i, null);
+        }
+        long size = store.getTotalEventSize();
+        for (long id = 3; id <= 20; id += 3) {
+            store.removeEvent(id);
+        }
+        store.removeEvent(3);
+        assertEquals(store.getEventCount(), 14);
+        assertEquals(store.getTotalEventSize(), size * 14 / 20);
+
+        // the first events go by range, and the removed ids past them stay removed
+        store.removeEvent(1);
+        store.removeEvent(2);
+        SegmentedEventStore reopened = new SegmentedEventStore(segments, 1024);
+        assertEquals(reopened.getEventCount(), 12);
+        JSONArray events = getBatch(reopened);
+        assertEquals(events.length(), 12);
+        assertEquals(events.getJSONObject(0).getLong("event_id"), 4);
+        assertEquals(events.getJSONObject(1).getLong("event_id"), 5);
+        assertEquals(events.getJSONObject(2).getLong("event_id"), 7);
+        assertEquals(events.getJSONObject(11).getLong("event_id"), 20);
+    }
+
+    @Test
+    public void testSegmentedEventStoreDropsIncompleteRecord() throws Exception {
+        SegmentedEventStore store = new SegmentedEventStore(segments);
+        store.addEvent("{\"event_type\":\"first\"}", 1L, null);
+        store.addEvent("{\"event_type\":\"second\"}", 2L, null);
+
+        // corrupt the second record, as if the process died while writing it
+        File segment = new File(segments, "events-1.seg");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        int firstLength = file.readInt();
+        file.seek(8 + firstLength + 8 + 30);
+        file.writeByte('X');
+        file.close();
+
+        SegmentedEventStore reopened = new SegmentedEventStore(segments);
+        assertEquals(reopened.getEventCount(), 1);
+        assertEquals(reopened.addEvent("{\"event_type\":\"third\"}", 3L, null), 2);
+        assertEquals(getSegmentCount(), 2);
+        JSONArray events = getBatch(new SegmentedEventStore(segments));
+        assertEquals(events.length(), 2);
+        assertEquals(events.getJSONObject(1).getString("event_type"), "third");
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder value = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            value.append(c);
+        }
+        return value.toString();
+    }
+}
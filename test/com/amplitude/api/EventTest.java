@@ -0,0 +1,154 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventTest {
+
+    private static String writeProperties(Event event, EventWriter writer) {
+        event.writeProperties(writer.reset());
+        return writer.toString();
+    }
+
+    private static String writeProperties(Event event) {
+        return writeProperties(event, new EventWriter());
+    }
+
+    @Test
+    public void testTypedProperties() throws JSONException {
+        Event event = new Event.Builder("test")
+            .putString("string", "quote \" slash / tab \t")
+            .putLong("long", 1L << 40)
+            .putInt("int", -7)
+            .putDouble("double", 1.5)
+            .putDouble("whole double", 2.0)
+            .putBoolean("true", true)
+            .putBoolean("false", false)
+            .putString("null", null)
+            .build();
+        assertEquals(event.getEventType(), "test");
+
+        // in the order added, with the same escaping and number format as JSONObject
+        assertEquals(writeProperties(event), "{\"string\":\"quote \\\" slash \\/ tab \\t\","
+            + "\"long\":1099511627776,\"int\":-7,\"double\":1.5,\"whole double\":2,"
+            + "\"true\":true,\"false\":false,\"null\":null}");
+    }
+
+    @Test
+    public void testReplacesAndIgnoresProperties() {
+        Event.Builder builder = new Event.Builder("test")
+            .putLong("a", 1)
+            .putString("b", "first")
+            .putString("a", "replaced")
+            .putString(null, "no key")
+            .putDouble("nan", Double.NaN)
+            .putDouble("infinite", Double.POSITIVE_INFINITY)
+            .putDouble("b", 0.25);
+        assertEquals(writeProperties(builder.build()), "{\"a\":\"replaced\",\"b\":0.25}");
+
+        // events already built keep their properties as the builder goes on
+        Event first = builder.build();
+        for (int i = 0; i < 20; i++) {
+            builder.putInt("key" + i, i);
+        }
+        Event second = builder.build();
+        assertEquals(writeProperties(first), "{\"a\":\"replaced\",\"b\":0.25}");
+        assertTrue(writeProperties(second).endsWith(",\"key19\":19}"));
+    }
+
+    @Test
+    public void testReplacesPropertiesOfLargeEvents() {
+        Event.Builder builder = new Event.Builder("test");
+        for (int i = 0; i < 50; i++) {
+            builder.putInt("key" + i, i);
+        }
+        for (int i = 0; i < 50; i += 7) {
+            builder.putString("key" + i, "replaced");
+        }
+        builder.putLong("added", 1);
+        String written = writeProperties(builder.build());
+        assertTrue(written.startsWith("{\"key0\":\"replaced\",\"key1\":1,"));
+        assertTrue(written.contains(",\"key7\":\"replaced\",\"key8\":8,"));
+        assertTrue(written.contains(",\"key49\":\"replaced\",\"added\":1}"));
+        assertEquals(written.split("replaced").length - 1, 8);
+
+        // keys with the same hash are told apart
+        builder.putInt("Aa", 1).putInt("BB", 2).putInt("Aa", 3);
+        assertTrue(writeProperties(builder.build()).endsWith(",\"Aa\":3,\"BB\":2}"));
+    }
+
+    @Test
+    public void testGroups() {
+        Event event = new Event.Builder("test")
+            .setGroup("orgId", "10")
+            .setGroup("sport", "tennis")
+            .setGroup("orgId", "15")
+            .setGroup("", "ignored")
+            .build();
+        EventWriter writer = new EventWriter().reset();
+        event.writeGroups(writer);
+        assertEquals(writer.toString(), "{\"orgId\":\"15\",\"sport\":\"tennis\"}");
+    }
+
+    @Test
+    public void testTruncatesAndLimits() throws JSONException {
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < Constants.MAX_STRING_LENGTH + 10; i++) {
+            longString.append('a');
+        }
+        Event event = new Event.Builder("test")
+            .putString("long", longString.toString())
+            .putString(Constants.AMP_REVENUE_RECEIPT, longString.toString())
+            .putLong("third", 3)
+            .build();
+
+        EventWriter writer = new EventWriter();
+        JSONObject written = new JSONObject(writeProperties(event, writer));
+        assertEquals(written.optString("long").length(), Constants.MAX_STRING_LENGTH);
+        assertEquals(written.optString(Constants.AMP_REVENUE_RECEIPT), longString.toString());
+        assertFalse(writer.isPropertyLimitExceeded());
+
+        writer.setPropertyLimits(Constants.MAX_PROPERTY_DEPTH, 2, Integer.MAX_VALUE);
+        written = new JSONObject(writeProperties(event, writer));
+        assertEquals(written.length(), 2);
+        assertFalse(written.has("third"));
+        assertTrue(writer.isPropertyLimitExceeded());
+    }
+
+    @Test
+    public void testTooManyProperties() {
+        Event.Builder builder = new Event.Builder("test");
+        for (int i = 0; i < Constants.MAX_PROPERTY_KEYS; i++) {
+            builder.putInt("key" + i, i);
+        }
+        int last = Constants.MAX_PROPERTY_KEYS - 1;
+        assertTrue(writeProperties(builder.build()).endsWith(
+            ",\"key" + last + "\":" + last + "}"));
+
+        // like JSONObject properties, one past the limit drops them all
+        builder.putInt("one too many", 0);
+        assertEquals(writeProperties(builder.build()), "{}");
+    }
+
+    @Test
+    public void testBuilderDefaults() {
+        Event event = new Event.Builder("test").build();
+        assertEquals(event.timestamp, 0);
+        assertFalse(event.outOfSession);
+        assertEquals(writeProperties(event), "{}");
+
+        event = new Event.Builder("test").setTimestamp(1000).setOutOfSession(true).build();
+        assertEquals(event.timestamp, 1000);
+        assertTrue(event.outOfSession);
+    }
+}
@@ -0,0 +1,265 @@
+package com.amplitude.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventWriterTest {
+
+    private static final int EVENT_COUNT = 10000;
+
+    private static JSONObject getProperties() throws JSONException {
+        return new JSONObject()
+            .put("string", "quote \" slash / backslash \\ tab \t control \u0001 unicode é")
+            .put("int", 42)
+            .put("long", 1L << 40)
+            .put("double", 1.5)
+            .put("whole double", 2.0)
+            .put("boolean", true)
+            .put("null", JSONObject.NULL)
+            .put("array", new JSONArray().put(1).put("two").put(new JSONObject().put("a", 3)))
+            .put("nested", new JSONObject().put("empty", new JSONObject()));
+    }
+
+    @Test
+    public void testMatchesJSONObject() throws JSONException {
+        JSONObject properties = getProperties();
+        assertEquals(new EventWriter().reset().value(properties).toString(),
+            properties.toString());
+
+        String written = new EventWriter().reset().beginObject()
+            .key("timestamp").value(1000L)
+            .key("location").beginObject()
+                .key("lat").value(37.5).key("lng").value(-122.0).endObject()
+            .key("properties").value(properties)
+            .endObject().toString();
+        assertEquals(written, "{\"timestamp\":1000,\"location\":{\"lat\":37.5,\"lng\":-122},"
+            + "\"properties\":" + properties.toString() + "}");
+    }
+
+    @Test
+    public void testMembersSkipsKeys() throws JSONException {
+        JSONObject object = new JSONObject().put("a", 1).put("b", 2).put("c", 3);
+        String written = new EventWriter().reset().beginObject()
+            .members(object, new String[] {"b", null})
+            .key("b").value(4L)
+            .endObject().toString();
+        assertTrue(Utils.compareJSONObjects(
+            new JSONObject(written), new JSONObject().put("a", 1).put("c", 3).put("b", 4)
+        ));
+    }
+
+    @Test
+    public void testReset() throws JSONException {
+        EventWriter writer = new EventWriter();
+        writer.reset().beginObject().key("a").value(1L).endObject();
+        assertEquals(writer.reset().beginObject().key("b").value(2L).endObject().toString(),
+            "{\"b\":2}");
+    }
+
+    @Test
+    public void testTruncatedValue() throws JSONException {
+        String longString = repeat('c', Constants.MAX_STRING_LENGTH * 2);
+        String truncString = repeat('c', Constants.MAX_STRING_LENGTH);
+        JSONObject tooManyKeys = new JSONObject();
+        for (int i = 0; i <= Constants.MAX_PROPERTY_KEYS; i++) {
+            tooManyKeys.put("key " + i, i);
+        }
+        JSONObject nested = new JSONObject().put("long string", longString);
+        JSONObject object = new JSONObject()
+            .put("int value", 10)
+            .put("long string", longString)
+            .put("array", new JSONArray().put(longString).put(10).put(new JSONArray()
+                .put(longString)))
+            .put("jsonobject", nested)
+            .put("too many keys", tooManyKeys)
+            .put(Constants.AMP_REVENUE_RECEIPT, longString)
+            .put(Constants.AMP_REVENUE_RECEIPT_SIG, longString);
+        String original = object.toString();
+
+        JSONObject written = new JSONObject(
+            new EventWriter().reset().truncatedValue(object).toString()
+        );
+        assertEquals(written.getInt("int value"), 10);
+        assertEquals(written.getString("long string"), truncString);
+        assertEquals(written.getJSONArray("array").getString(0), truncString);
+        assertEquals(written.getJSONArray("array").getInt(1), 10);
+        assertEquals(written.getJSONArray("array").getJSONArray(2).getString(0), truncString);
+        assertEquals(written.getJSONObject("jsonobject").getString("long string"), truncString);
+        assertEquals(written.getJSONObject("too many keys").length(), 0);
+        assertEquals(written.getString(Constants.AMP_REVENUE_RECEIPT), longString);
+        assertEquals(written.getString(Constants.AMP_REVENUE_RECEIPT_SIG), longString);
+
+        // same result as truncate(), without modifying the object
+        assertEquals(object.toString(), original);
+        assertEquals(nested.getString("long string"), longString);
+        assertEquals(
+            new EventWriter().reset().truncatedValue(object).toString(),
+            AmplitudeClient.getInstance().truncate(new JSONObject(original)).toString()
+        );
+    }
+
+    @Test
+    public void testPropertyDepthLimit() throws JSONException {
+        JSONObject deep = new JSONObject().put("value", 1);
+        for (int i = 0; i < 100; i++) {
+            deep = new JSONObject().put("nested", deep).put("value", i);
+        }
+        JSONObject properties = new JSONObject()
+            .put("deep", deep)
+            .put("array", new JSONArray().put(1).put(new JSONArray().put(2)).put(3))
+            .put("flat", "value");
+
+        EventWriter writer = new EventWriter().reset().setPropertyLimits(2, 1000, 100000);
+        JSONObject written = new JSONObject(writer.truncatedValue(properties).toString());
+        assertTrue(writer.isPropertyLimitExceeded());
+        assertEquals(written.getString("flat"), "value");
+        assertEquals(written.getJSONObject("deep").getInt("value"), 99);
+        assertFalse(written.getJSONObject("deep").has("nested"));
+        assertEquals(written.getJSONArray("array").toString(), "[1,3]");
+
+        writer.reset().setPropertyLimits(1, 1000, 100000);
+        written = new JSONObject(writer.truncatedValue(properties).toString());
+        assertEquals(written.toString(), "{\"flat\":\"value\"}");
+
+        // the budget is per event
+        writer.reset().setPropertyLimits(1000, 1000, 100000).truncatedValue(properties);
+        assertFalse(writer.isPropertyLimitExceeded());
+    }
+
+    @Test
+    public void testPropertyValuesLimit() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < 100000; i++) {
+            array.put(i);
+        }
+        EventWriter writer = new EventWriter().reset().setPropertyLimits(32, 10, 100000);
+        JSONObject written = new JSONObject(writer.beginObject()
+            .key("properties").truncatedValue(new JSONObject().put("array", array))
+            .key("groups").truncatedValue(new JSONObject().put("group", "name"))
+            .endObject().toString());
+        assertTrue(writer.isPropertyLimitExceeded());
+        // the object, the array and 8 elements
+        assertEquals(written.getJSONObject("properties").getJSONArray("array").length(), 8);
+        assertEquals(written.getJSONObject("groups").length(), 0);
+    }
+
+    @Test
+    public void testReceiptValuesAreLimited() throws JSONException {
+        JSONArray nested = new JSONArray();
+        for (int i = 0; i < 100000; i++) {
+            nested.put(new JSONArray().put(new JSONArray().put(i)));
+        }
+        EventWriter writer = new EventWriter().reset().setPropertyLimits(2, 10, 100000);
+        JSONObject written = new JSONObject(writer.truncatedValue(
+            new JSONObject().put(Constants.AMP_REVENUE_RECEIPT, nested)).toString());
+        assertTrue(writer.isPropertyLimitExceeded());
+        // nested arrays past the max depth are left out, the rest counts toward the budget
+        assertEquals(written.getJSONArray(Constants.AMP_REVENUE_RECEIPT).length(), 0);
+
+        writer.reset().setPropertyLimits(32, 10, 100000);
+        written = new JSONObject(writer.truncatedValue(
+            new JSONObject().put(Constants.AMP_REVENUE_RECEIPT, nested)).toString());
+        assertTrue(writer.isPropertyLimitExceeded());
+        assertTrue(written.getJSONArray(Constants.AMP_REVENUE_RECEIPT).length() < 10);
+    }
+
+    @Test
+    public void testEventLengthLimit() throws JSONException {
+        JSONObject properties = new JSONObject();
+        for (int i = 0; i < 1000; i++) {
+            properties.put("key " + i, repeat('c', 100));
+        }
+        EventWriter writer = new EventWriter().reset().setPropertyLimits(32, 100000, 10000);
+        String written = writer.truncatedValue(properties).toString();
+        assertTrue(writer.isPropertyLimitExceeded());
+        assertTrue(written.length() >= 10000);
+        assertTrue(written.length() < 10000 + 200);
+        assertTrue(new JSONObject(written).length() < 100);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder value = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    /*
+        Bytes allocated per event for the fields logEvent writes, as a JSONObject tree then
+        toString() versus the EventWriter. Runs on the host JVM, so the absolute numbers differ
+        from a device, but the ratio between the two is what matters.
+     */
+    @Test
+    public void testAllocationPerEvent() throws JSONException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+        JSONObject properties = new JSONObject().put("key", "value").put("count", 3);
+        EventWriter writer = new EventWriter();
+        String uuid = UUID.randomUUID().toString();
+        JSONObject empty = new JSONObject();
+
+        long[] bytes = new long[2];
+        for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+            long start = allocations.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                JSONObject event = new JSONObject();
+                event.put("event_type", "test");
+                event.put("timestamp", 1000L + i);
+                event.put("session_id", 1000L);
+                event.put("uuid", uuid);
+                event.put("sequence_number", (long) i);
+                JSONObject apiProperties = new JSONObject();
+                apiProperties.put("limit_ad_tracking", false);
+                apiProperties.put("gps_enabled", true);
+                event.put("api_properties", apiProperties);
+                event.put("event_properties", properties);
+                event.put("user_properties", new JSONObject());
+                event.put("groups", new JSONObject());
+                event.toString();
+            }
+            bytes[0] = allocations.getThreadAllocatedBytes(thread) - start;
+
+            start = allocations.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                writer.reset().beginObject();
+                writer.key("event_type").value("test");
+                writer.key("timestamp").value(1000L + i);
+                writer.key("session_id").value(1000L);
+                writer.key("uuid").value(uuid);
+                writer.key("sequence_number").value((long) i);
+                writer.key("api_properties").beginObject();
+                writer.key("limit_ad_tracking").value(false);
+                writer.key("gps_enabled").value(true);
+                writer.endObject();
+                writer.key("event_properties").value(properties);
+                writer.key("user_properties").value(empty);
+                writer.key("groups").value(empty);
+                writer.endObject().toString();
+            }
+            bytes[1] = allocations.getThreadAllocatedBytes(thread) - start;
+        }
+
+        // about 0.7KB against 3.3KB per event, so a third leaves room for other runtimes
+        assertTrue(bytes[1] * 3 <= bytes[0]);
+    }
+}